@@ -0,0 +1,149 @@
+package edu.utexas.nlp.hw3;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks of the preprocessing and file assembly hot paths on synthetic corpora.
+ *
+ * For every corpus size a WSJ-like file and a brown-like genre tree of that many sentences are generated once per
+ * trial, in a directory kept across runs. Each benchmark reports the time per operation; sentences per second are the
+ * size divided by that time, and the GC profiler (-prof gc) gives the bytes allocated per operation.
+ *
+ * mvn -B -Pbench test-compile exec:exec [-Djmh.args="-p size=10000,1000000 -prof gc PreprocessingBenchmark.concatenate"]
+ *
+ * The corpora go to <java.io.tmpdir>/hw3-benchmark unless -Dbench.work-dir=<dir> is given in the JMH arguments
+ * (-jvmArgsAppend -Dbench.work-dir=<dir>).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PreprocessingBenchmark {
+    private static final int BROWN_GENRES = 8;
+    private static final int SENTENCES_PER_FILE = 2000;
+
+    @Param({"10000", "100000"})
+    public int size;
+
+    private File workDirectory;
+    private File output;
+    private File wsjFile;
+    private File brownDirectory;
+    private File brownFile;
+    private Map<Integer, int[]> seedCounts;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        workDirectory = new File(System.getProperty("bench.work-dir", System.getProperty("java.io.tmpdir") + "/hw3-benchmark"));
+        File corpusDirectory = new File(workDirectory, "corpus_" + size);
+        wsjFile = new File(corpusDirectory, "wsj.conllx");
+        brownDirectory = new File(corpusDirectory, "brown");
+        brownFile = new File(brownDirectory, "ca/ca00.conllx");
+        output = new File(workDirectory, "output");
+        if (!output.isDirectory() && !output.mkdirs()) {
+            throw new IOException("Could not create " + output);
+        }
+        seedCounts = new HashMap<>();
+        for (int i = 1; i <= 10; i++) {
+            seedCounts.put(size * i / 10, new int[]{size * i / 10});
+        }
+        if (wsjFile.isFile() && brownDirectory.isDirectory()) {
+            return; // Generated by an earlier run
+        }
+        if (!brownDirectory.mkdirs() && !brownDirectory.isDirectory()) {
+            throw new IOException("Could not create " + brownDirectory);
+        }
+        System.out.println("Generating " + size + " sentence corpora in " + corpusDirectory + " . . .");
+        SyntheticCorpus corpus = new SyntheticCorpus(size);
+        corpus.writeFile(wsjFile, size);
+        corpus.writeBrownCorpus(brownDirectory, size, BROWN_GENRES, SENTENCES_PER_FILE);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteOutput() {
+        deleteRecursively(output);
+    }
+
+    /*
+     Preprocessor.getNumberOfSentences
+     */
+    @Benchmark
+    public int countSentences() throws IOException {
+        try (FileChannel channel = FileChannel.open(wsjFile.toPath(), StandardOpenOption.READ)) {
+            return ConllxFiles.countSentences(channel, 0, channel.size());
+        }
+    }
+
+    /*
+     Preprocessor.readFromFile into the execution directory
+     */
+    @Benchmark
+    public void sentenceStream() throws IOException {
+        try (ConllxSentenceReader reader = new ConllxSentenceReader(wsjFile);
+             OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(new File(output, "copy.conllx")), 1 << 16)) {
+            while (reader.next()) {
+                reader.writeTo(outputStream);
+            }
+        }
+    }
+
+    /*
+     Preprocessor.createIncrementalSeedFiles and the materialization of every size. The files of the last operation
+     are deleted first, since materialize keeps a prefix file which is already current.
+     */
+    @Benchmark
+    public void seedFiles() throws IOException {
+        PrefixIndex index = PrefixIndex.build(Collections.singletonList(wsjFile), seedCounts, true);
+        for (int prefixSize : index.sizes()) {
+            File seedFile = new File(output, "seed_" + prefixSize + ".conllx");
+            seedFile.delete();
+            index.materialize(prefixSize, seedFile);
+        }
+    }
+
+    /*
+     Preprocessor.readFromBrownGenre and createBrownTrainingTestSplit. The genre splits run on other threads, whose
+     allocations the GC profiler still counts.
+     */
+    @Benchmark
+    public void brownSplit() {
+        File executionDirectory = new File(output, "brown_split");
+        deleteRecursively(executionDirectory);
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new ByteArrayOutputStream())); // The preprocessor logs every step
+        try {
+            new Preprocessor(wsjFile.getPath(), wsjFile.getPath(), brownDirectory.getPath(), executionDirectory.getPath())
+                    .createBrownTrainingTestSplit();
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    /*
+     DependencyParserDriver.concatenateFiles
+     */
+    @Benchmark
+    public void concatenate() throws IOException {
+        ConllxFiles.concatenate(new File[]{wsjFile, brownFile}, new File(output, "combined.conllx"));
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        if (!file.delete() && file.exists()) {
+            System.out.println("Could not delete " + file);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package edu.utexas.nlp.hw3;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Deterministic generator of CoNLL-X corpora shaped like the WSJ and Brown data, so the benchmarks need no external files.
+ *
+ * Sentence lengths follow a skewed distribution between 1 and 70 tokens with a mean around 24, words are drawn from
+ * a Zipf-like vocabulary and about one token in eight is punctuation. Every token gets a valid head within its sentence.
+ */
+public class SyntheticCorpus {
+    private static final String[] TAGS = {"NN", "NNS", "NNP", "VB", "VBD", "VBZ", "JJ", "RB", "IN", "DT", "PRP", "CC", "CD", "TO"};
+    private static final String[] PUNCTUATION = {".", ",", ":", "''", "``", "-LRB-", "-RRB-"};
+    private static final String[] LABELS = {"nsubj", "dobj", "amod", "det", "prep", "pobj", "advmod", "aux", "cc", "conj", "nn", "num"};
+    private static final int VOCABULARY_SIZE = 50000;
+
+    private final Random random;
+    private final String[] vocabulary = new String[VOCABULARY_SIZE];
+
+    public SyntheticCorpus(long seed) {
+        random = new Random(seed);
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i < VOCABULARY_SIZE; i++) {
+            word.setLength(0);
+            int value = i;
+            do {
+                word.append((char) ('a' + value % 26));
+                value /= 26;
+            } while (value > 0);
+            vocabulary[i] = word.toString();
+        }
+    }
+
+    /*
+     Write a file with the given number of sentences.
+     */
+    public void writeFile(File file, int sentences) throws IOException {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 1 << 16)) {
+            StringBuilder sentence = new StringBuilder();
+            for (int i = 0; i < sentences; i++) {
+                writer.write(nextSentence(sentence));
+            }
+        }
+    }
+
+    /*
+     Write a brown style corpus: one directory per genre, each holding files of up to sentencesPerFile sentences.
+     The sentences are spread over the genres with decreasing weights.
+     */
+    public void writeBrownCorpus(File directory, int sentences, int genres, int sentencesPerFile) throws IOException {
+        double totalWeight = 0;
+        for (int genre = 0; genre < genres; genre++) {
+            totalWeight += 1.0 / (genre + 2);
+        }
+        int remaining = sentences;
+        for (int genre = 0; genre < genres; genre++) {
+            int genreSentences = genre == genres - 1 ? remaining : (int) Math.round(sentences / (genre + 2) / totalWeight);
+            genreSentences = Math.min(genreSentences, remaining);
+            remaining -= genreSentences;
+            String name = "c" + (char) ('a' + genre);
+            File genreDirectory = new File(directory, name);
+            if (!genreDirectory.isDirectory() && !genreDirectory.mkdirs()) {
+                throw new IOException("Could not create " + genreDirectory);
+            }
+            for (int file = 0; genreSentences > 0; file++) {
+                int fileSentences = Math.min(sentencesPerFile, genreSentences);
+                writeFile(new File(genreDirectory, String.format("%s%02d.conllx", name, file)), fileSentences);
+                genreSentences -= fileSentences;
+            }
+        }
+    }
+
+    private String nextSentence(StringBuilder sentence) {
+        sentence.setLength(0);
+        int length = 1 + (int) Math.min(69, Math.abs(random.nextGaussian() * 10 + 20) + random.nextInt(8));
+        for (int id = 1; id <= length; id++) {
+            boolean punctuation = id == length || random.nextInt(8) == 0;
+            String form = punctuation ? PUNCTUATION[random.nextInt(PUNCTUATION.length)] : vocabulary[zipf()];
+            String tag = punctuation ? form : TAGS[random.nextInt(TAGS.length)];
+            int head = id == 1 ? 0 : 1 + random.nextInt(length);
+            if (head == id) {
+                head = 1;
+            }
+            String label = head == 0 ? "root" : punctuation ? "punct" : LABELS[random.nextInt(LABELS.length)];
+            sentence.append(id).append('\t').append(form).append("\t_\t").append(tag).append('\t').append(tag)
+                    .append("\t_\t").append(head).append('\t').append(label).append("\t_\t_\n");
+        }
+        return sentence.append('\n').toString();
+    }
+
+    /*
+     Rank of a word drawn from an approximately Zipf distributed vocabulary.
+     */
+    private int zipf() {
+        return (int) Math.min(VOCABULARY_SIZE - 1, Math.exp(random.nextDouble() * Math.log(VOCABULARY_SIZE)) - 1);
+    }
+}
@@ -0,0 +1,80 @@
+package edu.utexas.nlp.hw3;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+/**
+ * A file which is written under a temporary name next to its target and only renamed onto the target once complete,
+ * so a crash or an error never leaves a truncated target behind.
+ *
+ * try (AtomicFile file = new AtomicFile(target)) {
+ *     ... write file.getTemporaryFile() ...
+ *     file.commit();
+ * }
+ * Closing without committing deletes the temporary file. The temporary name ends with the target's name, so tools
+ * choosing a format by extension (such as gzip for .gz) treat both alike.
+ */
+public class AtomicFile implements Closeable {
+    private final File target;
+    private final File temporary;
+    private boolean committed;
+
+    public AtomicFile(File target) throws IOException {
+        this.target = target;
+        File directory = target.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create directory " + directory);
+        }
+        // Unlike Files.createTempFile this keeps the default permissions, which the target inherits on rename
+        this.temporary = File.createTempFile(".tmp-", "-" + target.getName(), directory);
+    }
+
+    public File getTargetFile() {
+        return target;
+    }
+
+    public File getTemporaryFile() {
+        return temporary;
+    }
+
+    public OutputStream newOutputStream() throws IOException {
+        return new FileOutputStream(temporary);
+    }
+
+    public FileChannel newChannel() throws IOException {
+        return FileChannel.open(temporary.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /*
+     Flush the temporary file to disk and rename it onto the target.
+     */
+    public void commit() throws IOException {
+        try (FileChannel channel = FileChannel.open(temporary.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        try {
+            Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        committed = true;
+    }
+
+    /*
+     Copy source onto target atomically.
+     */
+    public static void copy(File source, File target) throws IOException {
+        try (AtomicFile file = new AtomicFile(target)) {
+            Files.copy(source.toPath(), file.getTemporaryFile().toPath(), StandardCopyOption.REPLACE_EXISTING);
+            file.commit();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!committed && temporary.exists() && !temporary.delete()) {
+            System.out.println(new java.util.Date().toString() + " Could not delete temporary file " + temporary);
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package edu.utexas.nlp.hw3;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Compact binary form of a CoNLL-X corpus, used only as a cache of the gold test sets: with --binary-corpora the
+ * preprocessing writes a .conllb companion next to every canonical corpus file, and ConllEvaluator reads the gold
+ * columns from it while it is current. Training inputs and the combined training files stay CoNLL-X text, which the
+ * parser reads. The main method converts single files either way.
+ *
+ * Every string column (FORM, LEMMA, CPOSTAG, POSTAG, FEATS, DEPREL, PHEAD, PDEPREL) is dictionary encoded into an int
+ * array, HEAD is kept as a packed int array and a sentence offset table gives the first token of every sentence. The
+ * ID column is implied by the token position. Layout of a .conllb file:
+ *
+ *   magic, version, number of columns
+ *   per column: dictionary size, then each entry as a length prefixed UTF-8 string
+ *   number of sentences, sentence offsets (number of sentences + 1 token indices)
+ *   number of tokens, per column its id array, then the head array
+ *
+ * Sentence offsets, ids and heads are written as variable length integers (7 bits per byte), so the frequent small
+ * dictionary ids and heads take a single byte each.
+ */
+public class BinaryConllxCorpus {
+    private static final int MAGIC = 0x434e4231; // "CNB1"
+    private static final int VERSION = 2;
+    private static final int CONLLX_COLUMNS = 10;
+    private static final int HEAD_FIELD = 6;
+    // Fields of a CoNLL-X line which are dictionary encoded, in column order
+    private static final int[] STRING_FIELDS = {1, 2, 3, 4, 5, 7, 8, 9};
+
+    private final List<List<String>> dictionaries = new ArrayList<>();
+    private final List<Map<String, Integer>> dictionaryIndexes = new ArrayList<>();
+    private int[][] columns;
+    private int[] heads;
+    private int[] sentenceOffsets;
+    private int sentenceCount;
+    private int tokenCount;
+
+    public BinaryConllxCorpus() {
+        for (int i = 0; i < STRING_FIELDS.length; i++) {
+            dictionaries.add(new ArrayList<>());
+            dictionaryIndexes.add(new HashMap<>());
+        }
+        columns = new int[STRING_FIELDS.length][1024];
+        heads = new int[1024];
+        sentenceOffsets = new int[1024];
+    }
+
+    public int sentenceCount() {
+        return sentenceCount;
+    }
+
+    public int tokenCount() {
+        return tokenCount;
+    }
+
+    public int sentenceLength(int sentence) {
+        return sentenceOffsets[sentence + 1] - sentenceOffsets[sentence];
+    }
+
+    /*
+     Index of the first token of the sentence among all tokens of the corpus.
+     */
+    public int firstToken(int sentence) {
+        return sentenceOffsets[sentence];
+    }
+
+    public int head(int token) {
+        return heads[token];
+    }
+
+    /*
+     Dictionary id of the token's value in the given CoNLL-X field (0 based, any field but ID and HEAD).
+     */
+    public int id(int field, int token) {
+        return columns[stringColumn(field)][token];
+    }
+
+    /*
+     Values of the given CoNLL-X field by dictionary id.
+     */
+    public List<String> dictionary(int field) {
+        return Collections.unmodifiableList(dictionaries.get(stringColumn(field)));
+    }
+
+    private static int stringColumn(int field) {
+        for (int i = 0; i < STRING_FIELDS.length; i++) {
+            if (STRING_FIELDS[i] == field) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Field " + field + " is not dictionary encoded");
+    }
+
+    /*
+     Parse a CoNLL-X text file. Every token line needs all ten columns and sentence-local ids 1, 2, 3, ...
+     */
+    public static BinaryConllxCorpus fromConllx(File textFile) throws IOException {
+        BinaryConllxCorpus corpus = new BinaryConllxCorpus();
+        corpus.appendConllx(textFile);
+        return corpus;
+    }
+
+    private void appendConllx(File textFile) throws IOException {
+        String[] fields = new String[CONLLX_COLUMNS];
+        try (ConllxSentenceReader reader = new ConllxSentenceReader(textFile)) {
+            while (reader.next()) {
+                String sentence = new String(reader.buffer(), reader.bufferStart(), reader.length(), StandardCharsets.UTF_8);
+                int id = 0;
+                for (String line : sentence.split("\n")) {
+                    if (line.endsWith("\r")) {
+                        line = line.substring(0, line.length() - 1);
+                    }
+                    int count = split(line, fields);
+                    id++;
+                    if (count != CONLLX_COLUMNS || !fields[0].equals(String.valueOf(id))) {
+                        throw new IOException("Unsupported CoNLL-X line in sentence " + reader.sentenceCount() + " of " + textFile + ": " + line);
+                    }
+                    addToken(fields);
+                }
+                endSentence();
+            }
+        }
+    }
+
+    private static int split(String line, String[] fields) {
+        int count = 0;
+        int start = 0;
+        while (count < fields.length) {
+            int tab = line.indexOf('\t', start);
+            fields[count++] = tab < 0 ? line.substring(start) : line.substring(start, tab);
+            if (tab < 0) {
+                return count;
+            }
+            start = tab + 1;
+        }
+        return count + 1; // More columns than expected
+    }
+
+    private void ensureTokenCapacity() {
+        if (tokenCount == heads.length) {
+            heads = Arrays.copyOf(heads, heads.length * 2);
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = Arrays.copyOf(columns[i], heads.length);
+            }
+        }
+    }
+
+    private void addToken(String[] fields) {
+        ensureTokenCapacity();
+        for (int i = 0; i < STRING_FIELDS.length; i++) {
+            columns[i][tokenCount] = encode(i, fields[STRING_FIELDS[i]]);
+        }
+        heads[tokenCount] = Integer.parseInt(fields[HEAD_FIELD]);
+        tokenCount++;
+    }
+
+    private void endSentence() {
+        if (sentenceCount + 1 == sentenceOffsets.length) {
+            sentenceOffsets = Arrays.copyOf(sentenceOffsets, sentenceOffsets.length * 2);
+        }
+        sentenceOffsets[++sentenceCount] = tokenCount;
+    }
+
+    private int encode(int column, String value) {
+        Map<String, Integer> index = dictionaryIndexes.get(column);
+        Integer id = index.get(value);
+        if (id == null) {
+            id = index.size();
+            index.put(value, id);
+            dictionaries.get(column).add(value);
+        }
+        return id;
+    }
+
+    private String[] fields(int token, int id, String[] fields) {
+        fields[0] = String.valueOf(id);
+        for (int i = 0; i < STRING_FIELDS.length; i++) {
+            fields[STRING_FIELDS[i]] = dictionaries.get(i).get(columns[i][token]);
+        }
+        fields[HEAD_FIELD] = String.valueOf(heads[token]);
+        return fields;
+    }
+
+    /*
+     Write the corpus back as CoNLL-X text, one empty line after every sentence.
+     */
+    public void writeConllx(File textFile) throws IOException {
+        String[] fields = new String[CONLLX_COLUMNS];
+        try (AtomicFile file = new AtomicFile(textFile)) {
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(file.newOutputStream(), StandardCharsets.UTF_8), 1 << 16)) {
+                for (int sentence = 0; sentence < sentenceCount; sentence++) {
+                    for (int token = sentenceOffsets[sentence]; token < sentenceOffsets[sentence + 1]; token++) {
+                        fields(token, token - sentenceOffsets[sentence] + 1, fields);
+                        for (int i = 0; i < CONLLX_COLUMNS; i++) {
+                            if (i > 0) {
+                                writer.write('\t');
+                            }
+                            writer.write(fields[i]);
+                        }
+                        writer.write('\n');
+                    }
+                    writer.write('\n');
+                }
+            }
+            file.commit();
+        }
+    }
+
+    public void write(File binaryFile) throws IOException {
+        try (AtomicFile file = new AtomicFile(binaryFile)) {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file.newOutputStream(), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(STRING_FIELDS.length);
+                for (List<String> dictionary : dictionaries) {
+                    out.writeInt(dictionary.size());
+                    for (String value : dictionary) {
+                        byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+                        out.writeInt(encoded.length);
+                        out.write(encoded);
+                    }
+                }
+                out.writeInt(sentenceCount);
+                for (int i = 1; i <= sentenceCount; i++) {
+                    writeVarint(out, sentenceOffsets[i] - sentenceOffsets[i - 1]);
+                }
+                out.writeInt(tokenCount);
+                for (int[] column : columns) {
+                    for (int i = 0; i < tokenCount; i++) {
+                        writeVarint(out, column[i]);
+                    }
+                }
+                for (int i = 0; i < tokenCount; i++) {
+                    writeVarint(out, heads[i]);
+                }
+            }
+            file.commit();
+        }
+    }
+
+    public static BinaryConllxCorpus read(File binaryFile) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(binaryFile), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != STRING_FIELDS.length) {
+                throw new IOException(binaryFile + " is not a binary CoNLL-X corpus");
+            }
+            BinaryConllxCorpus corpus = new BinaryConllxCorpus();
+            for (int column = 0; column < STRING_FIELDS.length; column++) {
+                int size = in.readInt();
+                for (int i = 0; i < size; i++) {
+                    byte[] encoded = new byte[in.readInt()];
+                    in.readFully(encoded);
+                    corpus.encode(column, new String(encoded, StandardCharsets.UTF_8));
+                }
+            }
+            corpus.sentenceCount = in.readInt();
+            corpus.sentenceOffsets = new int[corpus.sentenceCount + 2];
+            for (int i = 1; i <= corpus.sentenceCount; i++) {
+                corpus.sentenceOffsets[i] = corpus.sentenceOffsets[i - 1] + readVarint(in);
+            }
+            corpus.tokenCount = in.readInt();
+            int capacity = Math.max(1, corpus.tokenCount);
+            for (int column = 0; column < STRING_FIELDS.length; column++) {
+                corpus.columns[column] = new int[capacity];
+                for (int i = 0; i < corpus.tokenCount; i++) {
+                    corpus.columns[column][i] = readVarint(in);
+                }
+            }
+            corpus.heads = new int[capacity];
+            for (int i = 0; i < corpus.tokenCount; i++) {
+                corpus.heads[i] = readVarint(in);
+            }
+            return corpus;
+        }
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length integer");
+    }
+
+    /*
+     Path of the binary companion of a .conllx file.
+     */
+    public static File binaryPath(String conllxPath) {
+        String base = conllxPath.endsWith(".conllx") ? conllxPath.substring(0, conllxPath.length() - ".conllx".length()) : conllxPath;
+        return new File(base + ".conllb");
+    }
+
+    /*
+     The binary companion of the .conllx file if it exists and is not older than the file, otherwise null.
+     */
+    public static File currentBinaryPath(File conllxFile) {
+        File binaryFile = binaryPath(conllxFile.getPath());
+        return binaryFile.isFile() && binaryFile.lastModified() >= conllxFile.lastModified() ? binaryFile : null;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3 || !(args[0].equals("to-binary") || args[0].equals("to-conllx"))) {
+            System.out.println("java edu.utexas.nlp.hw3.BinaryConllxCorpus <to-binary/to-conllx> <input> <output>");
+            return;
+        }
+        if (args[0].equals("to-binary")) {
+            fromConllx(new File(args[1])).write(new File(args[2]));
+        } else {
+            read(new File(args[1])).writeConllx(new File(args[2]));
+        }
+    }
+}
@@ -0,0 +1,651 @@
+package edu.utexas.nlp.hw3;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Streams a gold and a predicted CoNLL-X file side by side and counts attachment scores.
+ *
+ * Scoring follows DependencyParser.testCoNLL: tokens whose gold POS tag is punctuation are left out, and the
+ * scores are percentages. Besides the totals, the counters are kept per gold DEPREL and, when the file is made of
+ * consecutive segments such as the brown genres, per segment. Counters from several shards can be added together.
+ *
+ * When the gold file has a current binary companion (see BinaryConllxCorpus), the gold columns are taken from it
+ * instead of parsing the gold text, and only the predicted file is read as text.
+ */
+public class ConllEvaluator {
+    private static final int POS_COLUMN = 4;
+    private static final int HEAD_COLUMN = 6;
+    private static final int DEPREL_COLUMN = 7;
+    private static final byte[][] PUNCTUATION_TAGS = {
+            bytes("''"), bytes("``"), bytes("-LRB-"), bytes("-RRB-"), bytes("."), bytes(":"), bytes(",")
+    };
+
+    private long sentences;
+    private long scoredTokens;
+    private long correctHeads;
+    private long correctLabels; // Correct head and correct label
+    private final LabelCounters labelCounters = new LabelCounters();
+
+    // Optional segments: segment i holds the sentences [segmentEnds[i - 1], segmentEnds[i])
+    private String[] segmentNames = new String[0];
+    private int[] segmentEnds = new int[0];
+    private long[] segmentScoredTokens = new long[0];
+    private long[] segmentCorrectHeads = new long[0];
+    private long[] segmentCorrectLabels = new long[0];
+    private int sentence; // Index in the whole file of the sentence being scored
+    private int segment;
+
+    // Optional LAS of every sentence as a fraction, in file order
+    private boolean recordSentenceScores;
+    private float[] sentenceScores = new float[0];
+    private int sentenceScoreCount;
+
+    // Start and end of each column of the current gold and predicted line
+    private final int[] goldColumns = new int[2 * (DEPREL_COLUMN + 1)];
+    private final int[] predictedColumns = new int[2 * (DEPREL_COLUMN + 1)];
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /*
+     Break the scores down by consecutive segments of the file holding the given numbers of sentences each.
+     */
+    public void setSegments(List<String> names, int[] sentenceCounts) {
+        segmentNames = names.toArray(new String[0]);
+        segmentEnds = new int[sentenceCounts.length];
+        for (int i = 0; i < sentenceCounts.length; i++) {
+            segmentEnds[i] = (i == 0 ? 0 : segmentEnds[i - 1]) + sentenceCounts[i];
+        }
+        segmentScoredTokens = new long[segmentEnds.length];
+        segmentCorrectHeads = new long[segmentEnds.length];
+        segmentCorrectLabels = new long[segmentEnds.length];
+    }
+
+    /*
+     Also keep the LAS of every single sentence. Sentences without scored tokens get 1.
+     */
+    public void recordSentenceScores() {
+        recordSentenceScores = true;
+    }
+
+    public float[] getSentenceScores() {
+        return Arrays.copyOf(sentenceScores, sentenceScoreCount);
+    }
+
+    private void addSentenceScore(float score) {
+        if (sentenceScoreCount == sentenceScores.length) {
+            sentenceScores = Arrays.copyOf(sentenceScores, Math.max(1024, sentenceScores.length * 2));
+        }
+        sentenceScores[sentenceScoreCount++] = score;
+    }
+
+    /*
+     Add the scores of predicted against gold to the counters.
+     */
+    public void evaluate(File gold, File predicted) throws IOException {
+        evaluateRange(gold, 0, Long.MAX_VALUE, predicted, 0, Long.MAX_VALUE, 0);
+    }
+
+    /*
+     Same as evaluate(gold, predicted), but both files are cut into the same parts at sentence boundaries and the
+     parts are scored concurrently on the executor.
+     */
+    public void evaluate(File gold, File predicted, ExecutorService executor, int parts) throws IOException {
+        File binaryGold = BinaryConllxCorpus.currentBinaryPath(gold);
+        if (binaryGold != null) {
+            evaluate(new BinaryGold(BinaryConllxCorpus.read(binaryGold), gold), predicted, executor, parts);
+            return;
+        }
+        if (parts <= 1) {
+            evaluate(gold, predicted);
+            return;
+        }
+        try (FileChannel goldChannel = FileChannel.open(gold.toPath(), StandardOpenOption.READ);
+             FileChannel predictedChannel = FileChannel.open(predicted.toPath(), StandardOpenOption.READ)) {
+            // Count the sentences starting in equal byte chunks of both files
+            long[] goldChunks = chunkBounds(goldChannel.size(), parts);
+            long[] predictedChunks = chunkBounds(predictedChannel.size(), parts);
+            List<Callable<Long>> counts = new ArrayList<>();
+            for (int i = 0; i < parts; i++) {
+                long goldFrom = goldChunks[i], goldTo = goldChunks[i + 1];
+                long predictedFrom = predictedChunks[i], predictedTo = predictedChunks[i + 1];
+                counts.add(() -> (long) ConllxFiles.countSentences(goldChannel, goldFrom, goldTo));
+                counts.add(() -> (long) ConllxFiles.countSentences(predictedChannel, predictedFrom, predictedTo));
+            }
+            List<Long> sentenceCounts = runAll(executor, counts);
+            int[] goldFirst = new int[parts + 1]; // Index of the first sentence starting in each chunk
+            int[] predictedFirst = new int[parts + 1];
+            for (int i = 0; i < parts; i++) {
+                goldFirst[i + 1] = goldFirst[i] + sentenceCounts.get(2 * i).intValue();
+                predictedFirst[i + 1] = predictedFirst[i] + sentenceCounts.get(2 * i + 1).intValue();
+            }
+            if (goldFirst[parts] != predictedFirst[parts]) {
+                throw new IOException(gold + " has " + goldFirst[parts] + " sentences but " + predicted + " has " + predictedFirst[parts]);
+            }
+
+            // Every gold chunk with a sentence in it becomes a part, starting at its first sentence
+            List<Integer> partFirstSentences = new ArrayList<>();
+            List<Callable<Long>> starts = new ArrayList<>();
+            for (int i = 0; i < parts; i++) {
+                if (goldFirst[i + 1] == goldFirst[i]) {
+                    continue;
+                }
+                int first = goldFirst[i];
+                int goldChunk = i;
+                int predictedChunk = 0;
+                while (predictedFirst[predictedChunk + 1] <= first) {
+                    predictedChunk++;
+                }
+                int predictedChunkIndex = predictedChunk;
+                partFirstSentences.add(first);
+                starts.add(() -> ConllxFiles.sentenceStart(goldChannel, goldChunks[goldChunk], goldChunks[goldChunk + 1], 0));
+                starts.add(() -> ConllxFiles.sentenceStart(predictedChannel, predictedChunks[predictedChunkIndex],
+                        predictedChunks[predictedChunkIndex + 1], first - predictedFirst[predictedChunkIndex]));
+            }
+            List<Long> offsets = runAll(executor, starts);
+
+            List<Callable<ConllEvaluator>> scores = new ArrayList<>();
+            for (int part = 0; part < partFirstSentences.size(); part++) {
+                long goldFrom = offsets.get(2 * part);
+                long predictedFrom = offsets.get(2 * part + 1);
+                boolean last = part + 1 == partFirstSentences.size();
+                long goldTo = last ? Long.MAX_VALUE : offsets.get(2 * part + 2);
+                long predictedTo = last ? Long.MAX_VALUE : offsets.get(2 * part + 3);
+                int first = partFirstSentences.get(part);
+                scores.add(() -> {
+                    ConllEvaluator evaluator = new ConllEvaluator();
+                    evaluator.copySegments(this);
+                    evaluator.recordSentenceScores = recordSentenceScores;
+                    evaluator.evaluateRange(gold, goldFrom, goldTo, predicted, predictedFrom, predictedTo, first);
+                    return evaluator;
+                });
+            }
+            for (ConllEvaluator evaluator : runAll(executor, scores)) {
+                add(evaluator);
+            }
+        }
+    }
+
+    /*
+     Same as evaluate(gold, predicted, executor, parts) with the gold columns from the binary corpus. Only the
+     predicted file is cut into parts; the gold sentences of a part are found by their number.
+     */
+    private void evaluate(BinaryGold gold, File predicted, ExecutorService executor, int parts) throws IOException {
+        parts = Math.max(1, parts);
+        try (FileChannel predictedChannel = FileChannel.open(predicted.toPath(), StandardOpenOption.READ)) {
+            long[] predictedChunks = chunkBounds(predictedChannel.size(), parts);
+            List<Callable<Long>> counts = new ArrayList<>();
+            for (int i = 0; i < parts; i++) {
+                long from = predictedChunks[i], to = predictedChunks[i + 1];
+                counts.add(() -> (long) ConllxFiles.countSentences(predictedChannel, from, to));
+            }
+            List<Long> sentenceCounts = runAll(executor, counts);
+            int[] predictedFirst = new int[parts + 1]; // Index of the first sentence starting in each chunk
+            for (int i = 0; i < parts; i++) {
+                predictedFirst[i + 1] = predictedFirst[i] + sentenceCounts.get(i).intValue();
+            }
+            if (predictedFirst[parts] != gold.corpus.sentenceCount()) {
+                throw new IOException(gold.file + " has " + gold.corpus.sentenceCount() + " sentences but " + predicted
+                        + " has " + predictedFirst[parts]);
+            }
+
+            // Every chunk with a sentence in it becomes a part, from its first sentence to the next part
+            List<Integer> partChunks = new ArrayList<>();
+            List<Callable<Long>> starts = new ArrayList<>();
+            for (int i = 0; i < parts; i++) {
+                if (predictedFirst[i + 1] > predictedFirst[i]) {
+                    int chunk = i;
+                    partChunks.add(chunk);
+                    starts.add(() -> ConllxFiles.sentenceStart(predictedChannel, predictedChunks[chunk], predictedChunks[chunk + 1], 0));
+                }
+            }
+            List<Long> offsets = runAll(executor, starts);
+
+            List<Callable<ConllEvaluator>> scores = new ArrayList<>();
+            for (int part = 0; part < partChunks.size(); part++) {
+                long predictedFrom = offsets.get(part);
+                long predictedTo = part + 1 == partChunks.size() ? Long.MAX_VALUE : offsets.get(part + 1);
+                int first = predictedFirst[partChunks.get(part)];
+                scores.add(() -> {
+                    ConllEvaluator evaluator = new ConllEvaluator();
+                    evaluator.copySegments(this);
+                    evaluator.recordSentenceScores = recordSentenceScores;
+                    evaluator.evaluateRange(gold, predicted, predictedFrom, predictedTo, first);
+                    return evaluator;
+                });
+            }
+            for (ConllEvaluator evaluator : runAll(executor, scores)) {
+                add(evaluator);
+            }
+        }
+    }
+
+    private static long[] chunkBounds(long size, int parts) {
+        long[] bounds = new long[parts + 1];
+        for (int i = 0; i <= parts; i++) {
+            bounds[i] = size * i / parts;
+        }
+        return bounds;
+    }
+
+    private static <T> List<T> runAll(ExecutorService executor, List<Callable<T>> tasks) throws IOException {
+        List<T> results = new ArrayList<>();
+        try {
+            for (Future<T> future : executor.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while evaluating");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+        return results;
+    }
+
+    private void copySegments(ConllEvaluator other) {
+        segmentNames = other.segmentNames;
+        segmentEnds = other.segmentEnds;
+        segmentScoredTokens = new long[segmentEnds.length];
+        segmentCorrectHeads = new long[segmentEnds.length];
+        segmentCorrectLabels = new long[segmentEnds.length];
+    }
+
+    /*
+     Score the sentences in the given byte ranges of both files, the first of which is sentence firstSentence of the file.
+     */
+    private void evaluateRange(File gold, long goldFrom, long goldTo, File predicted, long predictedFrom, long predictedTo,
+                               int firstSentence) throws IOException {
+        sentence = firstSentence;
+        segment = 0;
+        try (ConllxSentenceReader goldReader = new ConllxSentenceReader(gold, goldFrom, goldTo);
+             ConllxSentenceReader predictedReader = new ConllxSentenceReader(predicted, predictedFrom, predictedTo)) {
+            while (goldReader.next()) {
+                if (!predictedReader.next()) {
+                    throw new IOException(predicted + " has fewer sentences than " + gold);
+                }
+                if (goldReader.tokenCount() != predictedReader.tokenCount()) {
+                    throw new IOException("Sentence " + goldReader.sentenceCount() + " has " + goldReader.tokenCount()
+                            + " tokens in " + gold + " but " + predictedReader.tokenCount() + " in " + predicted);
+                }
+                while (segment < segmentEnds.length && segmentEnds[segment] <= sentence) {
+                    segment++;
+                }
+                long scoredBefore = scoredTokens;
+                long correctBefore = correctLabels;
+                evaluateSentence(goldReader, predictedReader);
+                sentences++;
+                if (recordSentenceScores) {
+                    long scored = scoredTokens - scoredBefore;
+                    addSentenceScore(scored == 0 ? 1.0f : (float) (correctLabels - correctBefore) / scored);
+                }
+                sentence++;
+            }
+            if (predictedReader.next()) {
+                throw new IOException(predicted + " has more sentences than " + gold);
+            }
+        }
+    }
+
+    /*
+     Score the sentences in the given byte range of the predicted file, the first of which is sentence firstSentence,
+     against the same sentences of the binary gold corpus.
+     */
+    private void evaluateRange(BinaryGold gold, File predicted, long predictedFrom, long predictedTo, int firstSentence) throws IOException {
+        sentence = firstSentence;
+        segment = 0;
+        try (ConllxSentenceReader predictedReader = new ConllxSentenceReader(predicted, predictedFrom, predictedTo)) {
+            while (predictedReader.next()) {
+                if (sentence >= gold.corpus.sentenceCount()) {
+                    throw new IOException(predicted + " has more sentences than " + gold.file);
+                }
+                if (gold.corpus.sentenceLength(sentence) != predictedReader.tokenCount()) {
+                    throw new IOException("Sentence " + (sentence + 1) + " has " + gold.corpus.sentenceLength(sentence)
+                            + " tokens in " + gold.file + " but " + predictedReader.tokenCount() + " in " + predicted);
+                }
+                while (segment < segmentEnds.length && segmentEnds[segment] <= sentence) {
+                    segment++;
+                }
+                long scoredBefore = scoredTokens;
+                long correctBefore = correctLabels;
+                evaluateSentence(gold, sentence, predictedReader);
+                sentences++;
+                if (recordSentenceScores) {
+                    long scored = scoredTokens - scoredBefore;
+                    addSentenceScore(scored == 0 ? 1.0f : (float) (correctLabels - correctBefore) / scored);
+                }
+                sentence++;
+            }
+        }
+    }
+
+    private void evaluateSentence(BinaryGold gold, int goldSentence, ConllxSentenceReader predictedReader) throws IOException {
+        byte[] predictedBuffer = predictedReader.buffer();
+        int predictedLine = predictedReader.bufferStart();
+        int predictedEnd = predictedLine + predictedReader.length();
+        int token = gold.corpus.firstToken(goldSentence);
+        int end = token + gold.corpus.sentenceLength(goldSentence);
+
+        for (; token < end; token++) {
+            int predictedLineEnd = lineEnd(predictedBuffer, predictedLine, predictedEnd);
+            splitColumns(predictedBuffer, predictedLine, predictedLineEnd, predictedColumns);
+
+            if (!gold.punctuation[gold.corpus.id(POS_COLUMN, token)]) {
+                int headStart = predictedColumns[2 * HEAD_COLUMN];
+                boolean head = isNumber(predictedBuffer, headStart, predictedColumns[2 * HEAD_COLUMN + 1] - headStart, gold.corpus.head(token));
+                byte[] deprel = gold.deprels[gold.corpus.id(DEPREL_COLUMN, token)];
+                int deprelStart = predictedColumns[2 * DEPREL_COLUMN];
+                boolean label = head && equalRange(deprel, 0, deprel.length, predictedBuffer, deprelStart,
+                        predictedColumns[2 * DEPREL_COLUMN + 1] - deprelStart);
+                count(head, label, deprel, 0, deprel.length);
+            }
+            predictedLine = predictedLineEnd + 1;
+        }
+    }
+
+    /*
+     Whether buffer[start, start + length) is the decimal form of value, as written by the parser and the corpora.
+     */
+    private static boolean isNumber(byte[] buffer, int start, int length, int value) {
+        if (length == 0 || length > 10 || length > 1 && buffer[start] == '0') {
+            return false;
+        }
+        long parsed = 0;
+        for (int i = start; i < start + length; i++) {
+            if (buffer[i] < '0' || buffer[i] > '9') {
+                return false;
+            }
+            parsed = parsed * 10 + buffer[i] - '0';
+        }
+        return parsed == value;
+    }
+
+    private void evaluateSentence(ConllxSentenceReader goldReader, ConllxSentenceReader predictedReader) throws IOException {
+        byte[] goldBuffer = goldReader.buffer();
+        byte[] predictedBuffer = predictedReader.buffer();
+        int goldLine = goldReader.bufferStart();
+        int predictedLine = predictedReader.bufferStart();
+        int goldEnd = goldLine + goldReader.length();
+        int predictedEnd = predictedLine + predictedReader.length();
+
+        while (goldLine < goldEnd) {
+            int goldLineEnd = lineEnd(goldBuffer, goldLine, goldEnd);
+            int predictedLineEnd = lineEnd(predictedBuffer, predictedLine, predictedEnd);
+            splitColumns(goldBuffer, goldLine, goldLineEnd, goldColumns);
+            splitColumns(predictedBuffer, predictedLine, predictedLineEnd, predictedColumns);
+
+            if (!isPunctuation(goldBuffer, goldColumns)) {
+                boolean head = sameColumn(goldBuffer, goldColumns, predictedBuffer, predictedColumns, HEAD_COLUMN);
+                boolean label = head && sameColumn(goldBuffer, goldColumns, predictedBuffer, predictedColumns, DEPREL_COLUMN);
+                count(head, label, goldBuffer, goldColumns[2 * DEPREL_COLUMN], goldColumns[2 * DEPREL_COLUMN + 1] - goldColumns[2 * DEPREL_COLUMN]);
+            }
+            goldLine = goldLineEnd + 1;
+            predictedLine = predictedLineEnd + 1;
+        }
+    }
+
+    /*
+     Count one scored token of the current sentence with the gold DEPREL in buffer[start, start + length).
+     */
+    private void count(boolean head, boolean label, byte[] buffer, int start, int length) {
+        scoredTokens++;
+        correctHeads += head ? 1 : 0;
+        correctLabels += label ? 1 : 0;
+        int slot = labelCounters.slot(buffer, start, length);
+        labelCounters.scoredTokens[slot]++;
+        labelCounters.correctHeads[slot] += head ? 1 : 0;
+        labelCounters.correctLabels[slot] += label ? 1 : 0;
+        if (segment < segmentEnds.length) {
+            segmentScoredTokens[segment]++;
+            segmentCorrectHeads[segment] += head ? 1 : 0;
+            segmentCorrectLabels[segment] += label ? 1 : 0;
+        }
+    }
+
+    public void add(ConllEvaluator other) {
+        sentences += other.sentences;
+        scoredTokens += other.scoredTokens;
+        correctHeads += other.correctHeads;
+        correctLabels += other.correctLabels;
+        labelCounters.add(other.labelCounters);
+        if (recordSentenceScores) { // Parts are added in file order
+            for (int i = 0; i < other.sentenceScoreCount; i++) {
+                addSentenceScore(other.sentenceScores[i]);
+            }
+        }
+        if (segmentEnds.length == 0 && other.segmentEnds.length > 0) {
+            copySegments(other);
+        }
+        for (int i = 0; i < Math.min(segmentEnds.length, other.segmentEnds.length); i++) {
+            segmentScoredTokens[i] += other.segmentScoredTokens[i];
+            segmentCorrectHeads[i] += other.segmentCorrectHeads[i];
+            segmentCorrectLabels[i] += other.segmentCorrectLabels[i];
+        }
+    }
+
+    public long getSentences() {
+        return sentences;
+    }
+
+    public long getScoredTokens() {
+        return scoredTokens;
+    }
+
+    public double las() {
+        return scoredTokens == 0 ? 0.0 : correctLabels * 100.0 / scoredTokens;
+    }
+
+    public double uas() {
+        return scoredTokens == 0 ? 0.0 : correctHeads * 100.0 / scoredTokens;
+    }
+
+    private static double percentage(long correct, long total) {
+        return total == 0 ? 0.0 : correct * 100.0 / total;
+    }
+
+    /*
+     One line per segment: name, scored tokens, LAS and UAS.
+     */
+    public String segmentReport() {
+        StringBuilder report = new StringBuilder();
+        for (int i = 0; i < segmentNames.length; i++) {
+            report.append(segmentNames[i]).append('\t').append(segmentScoredTokens[i])
+                    .append("\tLAS ").append(percentage(segmentCorrectLabels[i], segmentScoredTokens[i]))
+                    .append("\tUAS ").append(percentage(segmentCorrectHeads[i], segmentScoredTokens[i])).append('\n');
+        }
+        return report.toString();
+    }
+
+    /*
+     Tab separated breakdown: the totals, one line per segment and one line per gold DEPREL, most frequent first.
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder("scope\tname\tscored_tokens\tlas\tuas\n");
+        report.append("total\tall\t").append(scoredTokens).append('\t').append(las()).append('\t').append(uas()).append('\n');
+        for (int i = 0; i < segmentNames.length; i++) {
+            report.append("segment\t").append(segmentNames[i]).append('\t').append(segmentScoredTokens[i]).append('\t')
+                    .append(percentage(segmentCorrectLabels[i], segmentScoredTokens[i])).append('\t')
+                    .append(percentage(segmentCorrectHeads[i], segmentScoredTokens[i])).append('\n');
+        }
+        Integer[] slots = labelCounters.usedSlots();
+        Arrays.sort(slots, (a, b) -> Long.compare(labelCounters.scoredTokens[b], labelCounters.scoredTokens[a]));
+        for (int slot : slots) {
+            report.append("deprel\t").append(new String(labelCounters.keys[slot], StandardCharsets.UTF_8)).append('\t')
+                    .append(labelCounters.scoredTokens[slot]).append('\t')
+                    .append(percentage(labelCounters.correctLabels[slot], labelCounters.scoredTokens[slot])).append('\t')
+                    .append(percentage(labelCounters.correctHeads[slot], labelCounters.scoredTokens[slot])).append('\n');
+        }
+        return report.toString();
+    }
+
+    private static int lineEnd(byte[] buffer, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == '\n') {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    /*
+     Fill columns with the start and end offsets of the first columns of the line. A trailing '\r' is left out.
+     */
+    private static void splitColumns(byte[] buffer, int from, int to, int[] columns) throws IOException {
+        if (to > from && buffer[to - 1] == '\r') {
+            to--;
+        }
+        int column = 0;
+        int start = from;
+        for (int i = from; i <= to && column < columns.length / 2; i++) {
+            if (i == to || buffer[i] == '\t') {
+                columns[2 * column] = start;
+                columns[2 * column + 1] = i;
+                column++;
+                start = i + 1;
+            }
+        }
+        if (column < columns.length / 2) {
+            throw new IOException("Malformed CoNLL-X line: " + new String(buffer, from, to - from, StandardCharsets.UTF_8));
+        }
+    }
+
+    private static boolean isPunctuation(byte[] buffer, int[] columns) {
+        int start = columns[2 * POS_COLUMN];
+        int length = columns[2 * POS_COLUMN + 1] - start;
+        for (byte[] tag : PUNCTUATION_TAGS) {
+            if (equalRange(buffer, start, length, tag, 0, tag.length)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean sameColumn(byte[] goldBuffer, int[] goldColumns, byte[] predictedBuffer, int[] predictedColumns, int column) {
+        int goldStart = goldColumns[2 * column];
+        int predictedStart = predictedColumns[2 * column];
+        return equalRange(goldBuffer, goldStart, goldColumns[2 * column + 1] - goldStart,
+                predictedBuffer, predictedStart, predictedColumns[2 * column + 1] - predictedStart);
+    }
+
+    private static boolean equalRange(byte[] a, int aStart, int aLength, byte[] b, int bStart, int bLength) {
+        if (aLength != bLength) {
+            return false;
+        }
+        for (int i = 0; i < aLength; i++) {
+            if (a[aStart + i] != b[bStart + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     Gold corpus in binary form, with the punctuation flag of every POS tag and the bytes of every DEPREL precomputed
+     so scoring a token looks both up by dictionary id.
+     */
+    private static class BinaryGold {
+        final BinaryConllxCorpus corpus;
+        final File file;
+        final boolean[] punctuation;
+        final byte[][] deprels;
+
+        BinaryGold(BinaryConllxCorpus corpus, File file) {
+            this.corpus = corpus;
+            this.file = file;
+            List<String> tags = corpus.dictionary(POS_COLUMN);
+            punctuation = new boolean[tags.size()];
+            for (int id = 0; id < tags.size(); id++) {
+                byte[] tag = bytes(tags.get(id));
+                for (byte[] punctuationTag : PUNCTUATION_TAGS) {
+                    punctuation[id] |= Arrays.equals(tag, punctuationTag);
+                }
+            }
+            List<String> labels = corpus.dictionary(DEPREL_COLUMN);
+            deprels = new byte[labels.size()][];
+            for (int id = 0; id < labels.size(); id++) {
+                deprels[id] = bytes(labels.get(id));
+            }
+        }
+    }
+
+    /*
+     Counters per gold DEPREL in an open addressing table keyed by the label bytes, so scoring a token allocates nothing.
+     */
+    private static class LabelCounters {
+        byte[][] keys = new byte[64][];
+        long[] scoredTokens = new long[64];
+        long[] correctHeads = new long[64];
+        long[] correctLabels = new long[64];
+        int size;
+
+        int slot(byte[] buffer, int start, int length) {
+            int hash = 1;
+            for (int i = 0; i < length; i++) {
+                hash = 31 * hash + buffer[start + i];
+            }
+            int mask = keys.length - 1;
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while (keys[slot] != null) {
+                if (equalRange(keys[slot], 0, keys[slot].length, buffer, start, length)) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (2 * (size + 1) > keys.length) {
+                grow();
+                return slot(buffer, start, length);
+            }
+            keys[slot] = Arrays.copyOfRange(buffer, start, start + length);
+            size++;
+            return slot;
+        }
+
+        private void grow() {
+            byte[][] oldKeys = keys;
+            long[] oldScored = scoredTokens, oldHeads = correctHeads, oldLabels = correctLabels;
+            keys = new byte[oldKeys.length * 2][];
+            scoredTokens = new long[keys.length];
+            correctHeads = new long[keys.length];
+            correctLabels = new long[keys.length];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    int slot = slot(oldKeys[i], 0, oldKeys[i].length);
+                    scoredTokens[slot] = oldScored[i];
+                    correctHeads[slot] = oldHeads[i];
+                    correctLabels[slot] = oldLabels[i];
+                }
+            }
+        }
+
+        void add(LabelCounters other) {
+            for (int i = 0; i < other.keys.length; i++) {
+                if (other.keys[i] != null) {
+                    int slot = slot(other.keys[i], 0, other.keys[i].length);
+                    scoredTokens[slot] += other.scoredTokens[i];
+                    correctHeads[slot] += other.correctHeads[i];
+                    correctLabels[slot] += other.correctLabels[i];
+                }
+            }
+        }
+
+        Integer[] usedSlots() {
+            List<Integer> slots = new ArrayList<>();
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != null) {
+                    slots.add(i);
+                }
+            }
+            return slots.toArray(new Integer[0]);
+        }
+    }
+}
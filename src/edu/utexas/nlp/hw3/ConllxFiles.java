@@ -0,0 +1,255 @@
+package edu.utexas.nlp.hw3;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Byte level operations on whole CoNLL-X files which never decode their contents.
+ */
+public final class ConllxFiles {
+    private static final byte[] SENTENCE_SEPARATOR = {'\n', '\n'};
+    private static final int SCAN_CHUNK_SIZE = 4096;
+    private static final int SCAN_WINDOW_SIZE = 1 << 20;
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+
+    private ConllxFiles() {
+    }
+
+    /*
+     Concatenate the sources into destination using FileChannel.transferTo, so the kernel copies the bytes directly.
+     Blank lines at the start and end of each source are dropped and exactly one sentence separator is written after it.
+     The destination only appears once it is complete.
+     */
+    public static void concatenate(File[] sources, File destination) throws IOException {
+        try (AtomicFile file = new AtomicFile(destination)) {
+            try (FileChannel out = file.newChannel()) {
+                for (File source : sources) {
+                    try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+                        long from = contentStart(in);
+                        long to = contentEnd(in);
+                        if (from >= to) { // Nothing but blank lines
+                            continue;
+                        }
+                        transferFully(in, from, to - from, out);
+                        writeFully(out, ByteBuffer.wrap(SENTENCE_SEPARATOR));
+                    }
+                }
+            }
+            file.commit();
+        }
+    }
+
+    /*
+     Copy count bytes starting at position of in to the current position of out.
+     */
+    public static void transferFully(FileChannel in, long position, long count, FileChannel out) throws IOException {
+        while (count > 0) {
+            long transferred = in.transferTo(position, count, out);
+            if (transferred <= 0) {
+                throw new EOFException("Unexpected end of file while copying");
+            }
+            position += transferred;
+            count -= transferred;
+        }
+    }
+
+    /*
+     Write the sentences of source whose entry in keep is set, each followed by one empty line. Returns how many.
+     */
+    public static int writeSentences(File source, boolean[] keep, File destination) throws IOException {
+        int written = 0;
+        try (AtomicFile file = new AtomicFile(destination)) {
+            try (ConllxSentenceReader reader = new ConllxSentenceReader(source);
+                 OutputStream outputStream = new BufferedOutputStream(file.newOutputStream(), OUTPUT_BUFFER_SIZE)) {
+                while (reader.next()) {
+                    int sentence = reader.sentenceCount() - 1;
+                    if (sentence >= keep.length) {
+                        throw new IOException(source + " has more than the expected " + keep.length + " sentences");
+                    }
+                    if (keep[sentence]) {
+                        reader.writeTo(outputStream);
+                        written++;
+                    }
+                }
+            }
+            file.commit();
+        }
+        return written;
+    }
+
+    /*
+     Copy source to destination sentence by sentence, taking the sentences marked in replaced from replacements
+     instead. replacements holds exactly the marked sentences, in order.
+     */
+    public static void replaceSentences(File source, boolean[] replaced, File replacements, File destination) throws IOException {
+        try (AtomicFile file = new AtomicFile(destination)) {
+            try (ConllxSentenceReader reader = new ConllxSentenceReader(source);
+                 ConllxSentenceReader replacementReader = new ConllxSentenceReader(replacements);
+                 OutputStream outputStream = new BufferedOutputStream(file.newOutputStream(), OUTPUT_BUFFER_SIZE)) {
+                while (reader.next()) {
+                    int sentence = reader.sentenceCount() - 1;
+                    if (sentence < replaced.length && replaced[sentence]) {
+                        if (!replacementReader.next()) {
+                            throw new IOException(replacements + " has fewer sentences than marked for replacement");
+                        }
+                        replacementReader.writeTo(outputStream);
+                    } else {
+                        reader.writeTo(outputStream);
+                    }
+                }
+                if (replacementReader.next()) {
+                    throw new IOException(replacements + " has more sentences than marked for replacement");
+                }
+            }
+            file.commit();
+        }
+    }
+
+    /*
+     Number of sentences starting in the byte range [from, to) of the channel.
+     */
+    public static int countSentences(FileChannel channel, long from, long to) throws IOException {
+        return (int) scanSentenceStarts(channel, from, to, -1);
+    }
+
+    /*
+     File offset of the k-th (counting from 0) sentence starting in the byte range [from, to), or to if there are fewer.
+     */
+    public static long sentenceStart(FileChannel channel, long from, long to, int k) throws IOException {
+        return scanSentenceStarts(channel, from, to, k);
+    }
+
+    /*
+     A sentence starts at a non-blank line which is the first line of the file or follows a blank line, the same rule
+     ConllxSentenceReader uses. That can be told from three bytes before and two bytes after the line start, so any
+     byte range can be scanned on its own. Returns the number of starts for k < 0, otherwise the offset of the k-th.
+     */
+    private static long scanSentenceStarts(FileChannel channel, long from, long to, int k) throws IOException {
+        long size = channel.size();
+        to = Math.min(to, size);
+        byte[] window = new byte[(int) Math.min(SCAN_WINDOW_SIZE, Math.max(0, to - from)) + 5];
+        long count = 0;
+        for (long windowStart = from; windowStart < to; windowStart += SCAN_WINDOW_SIZE) {
+            long windowEnd = Math.min(windowStart + SCAN_WINDOW_SIZE, to);
+            long readFrom = Math.max(0, windowStart - 3);
+            int length = (int) (Math.min(size, windowEnd + 2) - readFrom);
+            ByteBuffer buffer = ByteBuffer.wrap(window, 0, length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, readFrom + buffer.position()) < 0) {
+                    throw new EOFException("Unexpected end of file while scanning");
+                }
+            }
+            for (int i = (int) (windowStart - readFrom); i < windowEnd - readFrom; i++) {
+                if ((i == 0 || window[i - 1] == '\n') && isSentenceStart(window, i, length)) {
+                    if (count == k) {
+                        return readFrom + i;
+                    }
+                    count++;
+                }
+            }
+        }
+        return k < 0 ? count : to;
+    }
+
+    /*
+     Whether the line starting at window[i] is non-blank and the previous line, if any, is blank. Index 0 is only
+     passed for the start of the file.
+     */
+    private static boolean isSentenceStart(byte[] window, int i, int length) {
+        byte b = window[i];
+        if (b == '\n' || (b == '\r' && (i + 1 == length || window[i + 1] == '\n'))) {
+            return false;
+        }
+        if (i == 0 || i == 1 || window[i - 2] == '\n') {
+            return true;
+        }
+        return window[i - 2] == '\r' && (i == 2 || window[i - 3] == '\n');
+    }
+
+    /*
+     Hex encoded SHA-256 of the contents of the file.
+     */
+    public static String sha256(File file) throws IOException {
+        MessageDigest messageDigest = newSha256();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                messageDigest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return toHex(messageDigest.digest());
+    }
+
+    public static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    /*
+     Offset of the first byte that is not part of a leading blank line.
+     */
+    private static long contentStart(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_CHUNK_SIZE);
+        long size = channel.size();
+        long position = 0;
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            for (int i = 0; i < read; i++) {
+                byte b = buffer.get(i);
+                if (b != '\n' && b != '\r') {
+                    return position + i;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    /*
+     Offset just after the last byte that is not part of a trailing blank line.
+     */
+    private static long contentEnd(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_CHUNK_SIZE);
+        long end = channel.size();
+        while (end > 0) {
+            int length = (int) Math.min(SCAN_CHUNK_SIZE, end);
+            buffer.clear().limit(length);
+            int read = 0;
+            while (read < length) {
+                read += channel.read(buffer, end - length + read);
+            }
+            for (int i = length - 1; i >= 0; i--) {
+                byte b = buffer.get(i);
+                if (b != '\n' && b != '\r') {
+                    return end - length + i + 1;
+                }
+            }
+            end -= length;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,206 @@
+package edu.utexas.nlp.hw3;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streaming reader over a CoNLL-X file which hands out one sentence at a time as a byte range.
+ *
+ * A sentence is a run of non-empty lines; one or more empty lines end it. The bytes are never decoded:
+ * the current sentence always lies fully inside the reader's buffer so it can be copied out as is.
+ */
+public class ConllxSentenceReader implements Closeable {
+    private static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+    private final FileChannel channel;
+    private byte[] buffer;
+    private int position; // Next unread byte in buffer
+    private int limit; // End of valid bytes in buffer
+    private long bufferOffset; // File offset of buffer[0]
+    private final long end; // File offset at which reading stops
+    private boolean endOfFile;
+
+    private int sentenceStart = -1; // Buffer index where the current sentence starts
+    private int sentenceEnd = -1; // Buffer index just after the last line of the current sentence
+    private int tokenCount;
+    private int sentenceCount;
+
+    public ConllxSentenceReader(File file) throws IOException {
+        this(file, DEFAULT_BUFFER_SIZE);
+    }
+
+    public ConllxSentenceReader(File file, int bufferSize) throws IOException {
+        this(file, bufferSize, 0, Long.MAX_VALUE);
+    }
+
+    /*
+     Read only the sentences in the byte range [from, to) of the file. from should be the start of a sentence.
+     */
+    public ConllxSentenceReader(File file, long from, long to) throws IOException {
+        this(file, (int) Math.max(4096, Math.min(DEFAULT_BUFFER_SIZE, to - from)), from, to);
+    }
+
+    public ConllxSentenceReader(File file, int bufferSize, long from, long to) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.buffer = new byte[bufferSize];
+        this.bufferOffset = from;
+        this.end = to;
+        channel.position(from);
+    }
+
+    /*
+     Advance to the next sentence. Returns false once the end of the file has been reached.
+     */
+    public boolean next() throws IOException {
+        sentenceStart = -1;
+        sentenceEnd = -1;
+        tokenCount = 0;
+
+        while (true) {
+            int newline = indexOf((byte) '\n', position, limit);
+            if (newline < 0) {
+                if (!endOfFile) {
+                    fill();
+                    continue;
+                }
+                if (position < limit && !isBlank(position, limit)) { // Last line without a trailing newline
+                    if (sentenceStart < 0) {
+                        sentenceStart = position;
+                    }
+                    tokenCount++;
+                    position = limit;
+                }
+                if (sentenceStart < 0) {
+                    return false;
+                }
+                sentenceEnd = position;
+                sentenceCount++;
+                return true;
+            }
+
+            int lineStart = position;
+            position = newline + 1;
+            if (isBlank(lineStart, newline)) { // Empty line indicates division between sentences
+                if (sentenceStart >= 0) {
+                    sentenceEnd = lineStart;
+                    sentenceCount++;
+                    return true;
+                }
+            } else {
+                if (sentenceStart < 0) {
+                    sentenceStart = lineStart;
+                }
+                tokenCount++;
+            }
+        }
+    }
+
+    /*
+     File offset of the first byte of the current sentence.
+     */
+    public long start() {
+        return bufferOffset + sentenceStart;
+    }
+
+    /*
+     File offset just after the last line (including its newline, if any) of the current sentence.
+     */
+    public long end() {
+        return bufferOffset + sentenceEnd;
+    }
+
+    public int length() {
+        return sentenceEnd - sentenceStart;
+    }
+
+    /*
+     Number of token lines in the current sentence.
+     */
+    public int tokenCount() {
+        return tokenCount;
+    }
+
+    /*
+     Number of sentences returned so far.
+     */
+    public int sentenceCount() {
+        return sentenceCount;
+    }
+
+    /*
+     Raw access to the bytes of the current sentence: buffer()[bufferStart() .. bufferStart() + length()).
+     Only valid until the next call to next().
+     */
+    public byte[] buffer() {
+        return buffer;
+    }
+
+    public int bufferStart() {
+        return sentenceStart;
+    }
+
+    /*
+     Write the current sentence followed by exactly one empty line.
+     */
+    public void writeTo(OutputStream outputStream) throws IOException {
+        outputStream.write(buffer, sentenceStart, sentenceEnd - sentenceStart);
+        if (buffer[sentenceEnd - 1] != '\n') {
+            outputStream.write('\n');
+        }
+        outputStream.write('\n');
+    }
+
+    private boolean isBlank(int from, int to) {
+        return to == from || (to == from + 1 && buffer[from] == '\r');
+    }
+
+    private int indexOf(byte value, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     Read more bytes from the channel, keeping the partially scanned sentence (or line) at the start of the buffer.
+     */
+    private void fill() throws IOException {
+        int keepFrom = sentenceStart >= 0 ? sentenceStart : position;
+        int kept = limit - keepFrom;
+        if (keepFrom == 0 && kept == buffer.length) { // A single sentence larger than the buffer
+            byte[] larger = new byte[buffer.length * 2];
+            System.arraycopy(buffer, 0, larger, 0, kept);
+            buffer = larger;
+        } else if (keepFrom > 0) {
+            System.arraycopy(buffer, keepFrom, buffer, 0, kept);
+            bufferOffset += keepFrom;
+            position -= keepFrom;
+            if (sentenceStart >= 0) {
+                sentenceStart -= keepFrom;
+            }
+        }
+        limit = kept;
+
+        long remaining = end - (bufferOffset + limit);
+        if (remaining <= 0) {
+            endOfFile = true;
+            return;
+        }
+        ByteBuffer target = ByteBuffer.wrap(buffer, limit, (int) Math.min(buffer.length - limit, remaining));
+        int read = channel.read(target);
+        if (read < 0) {
+            endOfFile = true;
+        } else {
+            limit += read;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
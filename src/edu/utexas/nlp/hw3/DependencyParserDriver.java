@@ -4,11 +4,17 @@ import edu.stanford.nlp.parser.nndep.DependencyParser;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Created by pandian on 3/25/17.
  */
 public class DependencyParserDriver {
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+    private static final long MODEL_CACHE_DISK_BUDGET = 50L * 1024 * 1024 * 1024;
+    private static final int MIN_ROUND_MAX_ITER = 10;
+    private static final long PROGRESS_INTERVAL_SECONDS = 60;
+
     private String execDir;
     private String seedSet;
     private String testSet;
@@ -21,9 +27,34 @@ public class DependencyParserDriver {
     private String wsjTestPath;
     private String brownCorpusBasePath;
     private boolean varySelfTrainingSize;
+    private boolean byteLevelConcatenation = true;
+    private boolean binaryCorpora;
+    private boolean lengthBuckets;
+    private boolean dedup;
+    private double dedupNear;
+    private int selectTopK; // Keep every self-training sentence when neither selection option is given
+    private double selectThreshold;
+    private String selectScorer;
+    private int rounds;
+    private double minGain;
+    private String devPath;
+    private Long sampleSeed; // null takes the incremental sets as prefixes of the corpora
+    private int folds;
+    private int fold;
+    private String outputDir; // models and annotations of the experiment
+    private int schedulerParallelism = ExperimentScheduler.defaultParallelism();
+    private Map<String, String> options;
+    private Map<String, Object> experimentLocks; // seed_test pair -> lock, only set in server mode
+    private ExperimentConfig config;
+    private String[] experimentArgs; // <seed_corpus_name> <test_corpus_name> <single/batch> ..., null for a server or grid
+    private boolean resume;
+    private Journal journal; // Finished batch steps, null if it cannot be read
+    private ResultStore resultStore; // LAS results of all experiments, null if it cannot be read
 
-    private List<Integer> wsjSeedSetSizes;
-    private List<Integer> brownSelfTrainingSizes;
+    private Preprocessor preprocessor;
+    private ModelCache modelCache;
+    private ParallelAnnotator parallelAnnotator;
+    private RunReport runReport;
 
     private String currentTime() {
         return new Date().toString() + " ";
@@ -31,14 +62,70 @@ public class DependencyParserDriver {
 
     public DependencyParserDriver(String[] args) {
         parseCommandLineArgs(args);
+        modelCache = new ModelCache(new File(execDir + "/" + "model_cache"), MODEL_CACHE_DISK_BUDGET);
+        parallelAnnotator = new ParallelAnnotator(Runtime.getRuntime().availableProcessors(), new File(execDir + "/" + "shards"));
+        parallelAnnotator.setLengthBuckets(lengthBuckets);
+        runReport = new RunReport(new File(execDir + "/" + "run_report.csv"));
+        runReport.startProgress(PROGRESS_INTERVAL_SECONDS);
+        try {
+            journal = new Journal(new File(execDir + "/" + "journal.log"));
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println(currentTime() + "Could not read the journal, finished steps are neither recorded nor resumed");
+        }
+        try {
+            resultStore = new ResultStore(new File(options.getOrDefault("results", execDir + "/" + "results.tsv")));
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println(currentTime() + "Could not read the result store, results are not recorded");
+        }
+    }
+
+    /*
+     One experiment of a running server or grid, given by the arguments of its spec. It shares the server's
+     preprocessed corpora, prefix indexes, prepared embeddings, grid configuration, model cache and annotator; options
+     not given in the spec are taken from the server's command line.
+     */
+    private DependencyParserDriver(DependencyParserDriver server, String[] specArgs, int workers) {
+        Map<String, String> serverOptions = server.options;
+        String[] args = parseOptions(specArgs);
+        Map<String, String> specOptions = options;
+        options = new HashMap<>(serverOptions);
+        options.putAll(specOptions);
+        parseExperimentOptions();
+        if (args.length < 4) {
+            throw new IllegalArgumentException("Experiment spec " + Arrays.toString(specArgs)
+                    + " needs <seed_corpus_name> <test_corpus_name> <single/batch> <seed_set_size/vary_method> [<self_training_size>]");
+        }
+        parseExperimentArgs(args);
+        if (experimentType.equalsIgnoreCase("server") || experimentType.equalsIgnoreCase("grid")) {
+            throw new IllegalArgumentException("An experiment spec cannot start another server or grid");
+        }
 
-        wsjSeedSetSizes = new ArrayList<>(Arrays.asList(1000, 2000, 3000, 4000, 5000, 7000, 10000, 12000, 14000));
-        brownSelfTrainingSizes = new ArrayList<>(Arrays.asList(1000, 2000, 3000, 4000, 5000, 7000, 10000, 13000, 17000, 21000));
+        this.execDir = server.execDir;
+        this.wsjSeedPath = server.wsjSeedPath;
+        this.wsjTestPath = server.wsjTestPath;
+        this.brownCorpusBasePath = server.brownCorpusBasePath;
+        this.embeddingPath = server.embeddingPath;
+        this.preprocessor = server.preprocessor;
+        this.modelCache = server.modelCache;
+        this.parallelAnnotator = server.parallelAnnotator;
+        this.runReport = server.runReport;
+        this.config = server.config;
+        this.journal = server.journal;
+        this.resultStore = server.resultStore;
+        // Experiments running side by side share the machine
+        this.schedulerParallelism = Math.max(1, server.schedulerParallelism / workers);
     }
 
     private void printUsage() {
         System.out.println("java edu.utexas.nlp.hw3.DependencyParserDriver <execution_dir> <path_to_wsj_training.conllx> <path_to_wsj_23.conllx> <path_to_brown_corpus_base_path> <seed_corpus_name> <test_corpus_name> <embedding_file_path> <single> <seed_set_size> [<self_training_size>]");
         System.out.println("java edu.utexas.nlp.hw3.DependencyParserDriver <execution_dir> <path_to_wsj_training.conllx> <path_to_wsj_23.conllx> <path_to_brown_corpus_base_path> <seed_corpus_name> <test_corpus_name> <embedding_file_path> <batch> <vary_seed_size/vary_self_training_size>");
+        System.out.println("java edu.utexas.nlp.hw3.DependencyParserDriver <execution_dir> <path_to_wsj_training.conllx> <path_to_wsj_23.conllx> <path_to_brown_corpus_base_path> <embedding_file_path> server [--workers=<n>] [--spool=<spool_dir>]");
+        System.out.println("java edu.utexas.nlp.hw3.DependencyParserDriver <execution_dir> <path_to_wsj_training.conllx> <path_to_wsj_23.conllx> <path_to_brown_corpus_base_path> <embedding_file_path> grid --config=<grid.properties>");
+        System.out.println("  server runs every <name>.spec dropped into <spool_dir> (default <execution_dir>/spool), holding the arguments <seed_corpus_name> <test_corpus_name> <single/batch> ... and options of one experiment, until a file named shutdown appears");
+        System.out.println("Options (anywhere on the command line): --binary-corpora --length-buckets --dedup --dedup-near=<0..1> --select-top-k=<sentences> --select-threshold=<0..1> --select-scorer=<agreement/length> --rounds=<n> --min-gain=<las_points> --dev=<dev_set_path> --config=<grid.properties> --resume --sample-seed=<n> [--folds=<k> --fold=<j>] --results=<results.tsv>");
+        System.out.println("  LAS results are appended to <execution_dir>/results.tsv unless --results is given; query them with java edu.utexas.nlp.hw3.ResultStore");
     }
 
     private void validateSeedTestCorpus(String corpus) {
@@ -53,42 +140,191 @@ public class DependencyParserDriver {
         }
     }
 
-    private void readFromFile(String fileName, StringBuilder builder) {
-        String line;
+    private void readFromFile(String fileName, OutputStream outputStream) throws IOException {
+        try (ConllxSentenceReader reader = new ConllxSentenceReader(new File(fileName))) {
+            while (reader.next()) {
+                reader.writeTo(outputStream);
+            }
+        }
+    }
+
+    private void concatenateFiles(String source1, String source2, String destination) {
+        System.out.println(currentTime() + "Concatenating files " + source1 + " and " + source2 + " into file " + destination + " . . .");
+        try (RunReport.Stage stage = runReport.start("concatenate", destination)) {
+            stage.input(source1, source2).output(destination);
+            if (dedup) {
+                mergeFiles(source1, source2, destination);
+            } else if (byteLevelConcatenation) {
+                transferFiles(source1, source2, destination);
+            } else {
+                streamFiles(source1, source2, destination);
+            }
+        }
+    }
+
+    /*
+     Append the annotated sentences of source2 to the seed sentences of source1, leaving out those which repeat a
+     sentence of either file (--dedup), or nearly repeat one (--dedup-near=<jaccard>).
+     */
+    private void mergeFiles(String source1, String source2, String destination) {
         try {
-            FileReader fileReader = new FileReader(fileName);
-            BufferedReader bufferedReader = new BufferedReader(fileReader);
+            SentenceDeduplicator.Result result = new SentenceDeduplicator(dedupNear).merge(new File(source1), new File(source2), new File(destination));
+            System.out.println(currentTime() + "Kept " + result.keptTargetSentences() + " of " + result.targetSentences + " sentences of " + source2 + ", dropped " + result.exactDuplicates
+                    + " duplicates and " + result.nearDuplicates + " near-duplicates");
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not merge " + source1 + " and " + source2, e);
+        }
+    }
 
-            while ((line = bufferedReader.readLine()) != null) {
-                builder.append(line).append("\n");
+    /*
+     Kernel level copy of both sources into the destination with exactly one sentence separator at the boundary.
+     */
+    private void transferFiles(String source1, String source2, String destination) {
+        try {
+            ConllxFiles.concatenate(new File[]{new File(source1), new File(source2)}, new File(destination));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not concatenate " + source1 + " and " + source2, e);
+        }
+    }
+
+    /*
+     Streams both sources sentence by sentence into the destination, so only the read and write buffers are held in memory.
+     */
+    private void streamFiles(String source1, String source2, String destination) {
+        try (AtomicFile file = new AtomicFile(new File(destination))) {
+            try (OutputStream outputStream = new BufferedOutputStream(file.newOutputStream(), OUTPUT_BUFFER_SIZE)) {
+                readFromFile(source1, outputStream);
+                readFromFile(source2, outputStream);
             }
-            bufferedReader.close();
+            file.commit();
         } catch (IOException e) {
-            e.printStackTrace();
+            throw new UncheckedIOException("Could not concatenate " + source1 + " and " + source2, e);
         }
     }
 
-    private void writeToFile(String fileName, StringBuilder stringBuilder) {
-        //System.out.println(currentTime() + "Writing to file " + fileName + " . . .");
+    /*
+     Keep only the most confidently annotated self-training sentences, if a selection option was given, and return the
+     file to retrain on. With the agreement scorer a reference model is trained on the same seed set without the
+     embeddings, and each sentence is scored by how well both models' annotations agree. Every file written here is
+     named after the annotations and listed by selectionOutputs.
+     */
+    private String selectSelfTrainingSentences(String trainPath, String selfTrainingPath, String selfTrainAnnotationsPath) {
+        if (selectTopK <= 0 && selectThreshold <= 0) {
+            return selfTrainAnnotationsPath;
+        }
+        String base = selfTrainAnnotationsPath.substring(0, selfTrainAnnotationsPath.length() - ".conllx".length());
+        String selectedPath = base + "_selected.conllx";
         try {
-            FileWriter fileWriter = new FileWriter(fileName);
-            BufferedWriter bufferedWriter = new BufferedWriter(fileWriter);
-            bufferedWriter.write(stringBuilder.toString());
-            bufferedWriter.close();
+            float[] scores;
+            if (selectScorer.equals("length")) {
+                scores = SelfTrainingSelector.lengthScores(new File(selfTrainAnnotationsPath));
+            } else {
+                // Tasks selecting from different annotations of the same seed set restore this model from the model cache
+                String referenceAnnotationsPath = base + "_reference.conllx";
+                annotateTestSets(trainPath, base + "_reference_model", null, new String[]{selfTrainingPath},
+                        new String[]{referenceAnnotationsPath}, null, parserProperties(config.getMaxIter()));
+                scores = SelfTrainingSelector.agreementScores(new File(selfTrainAnnotationsPath), new File(referenceAnnotationsPath));
+            }
+            int kept;
+            try (RunReport.Stage stage = runReport.start("select", selectedPath)) {
+                stage.input(selfTrainAnnotationsPath).output(selectedPath);
+                kept = new SelfTrainingSelector(selectTopK, selectThreshold).write(new File(selfTrainAnnotationsPath), scores, new File(selectedPath));
+            }
+            System.out.println(currentTime() + "Selected " + kept + " of " + scores.length + " self-training sentences of "
+                    + selfTrainAnnotationsPath + " by " + selectScorer + " into " + selectedPath);
+            return selectedPath;
         } catch (IOException e) {
             e.printStackTrace();
+            System.out.println(currentTime() + "Selection failed, retraining on all of " + selfTrainAnnotationsPath);
+            return selfTrainAnnotationsPath;
         }
     }
 
-    private void concatenateFiles(String source1, String source2, String destination) {
-        System.out.println(currentTime() + "Concatenating files " + source1 + " and " + source2 + " into file " + destination + " . . .");
-        StringBuilder stringBuilder = new StringBuilder();
-        readFromFile(source1, stringBuilder);
-        readFromFile(source2, stringBuilder);
-        writeToFile(destination, stringBuilder);
+    /*
+     Files selectSelfTrainingSentences writes besides the combined training file, for the task running it to declare.
+     */
+    private List<String> selectionOutputs(String selfTrainAnnotationsPath) {
+        if (selectTopK <= 0 && selectThreshold <= 0) {
+            return Collections.emptyList();
+        }
+        String base = selfTrainAnnotationsPath.substring(0, selfTrainAnnotationsPath.length() - ".conllx".length());
+        if (selectScorer.equals("length")) {
+            return Collections.singletonList(base + "_selected.conllx");
+        }
+        return Arrays.asList(base + "_selected.conllx", base + "_reference.conllx", base + "_reference_model");
+    }
+
+    /*
+     Path of the incremental training file with the given number of sentences, materialized on first use from the prefix
+     index or, with --sample-seed, from the sample index (leaving out fold --fold of --folds).
+     */
+    private String seedSelfTrainingPath(String corpus, int size) {
+        if (sampleSeed != null) {
+            return preprocessor.materializeSampleFile(corpus, size, sampleSeed, folds > 0 ? fold : 0, folds);
+        }
+        return preprocessor.materializeSeedSelfTrainingFile(corpus, size);
+    }
+
+    /*
+     Convert the embedding file once into a binary store restricted to the words of the preprocessed corpora, and point
+     every training run at a text export of that store instead of the full embedding file.
+     */
+    private void prepareEmbeddings() {
+        File source = new File(embeddingPath);
+        if (!source.isFile()) {
+            System.out.println(currentTime() + "Embedding file " + embeddingPath + " not found, training without precomputed embeddings");
+            return;
+        }
+        List<File> corpora = new ArrayList<>();
+        for (String corpus : new String[]{"wsj_training", "wsj_test", "brown_training", "brown_test"}) {
+            corpora.add(new File(execDir + "/" + corpus + ".conllx"));
+        }
+        File binaryFile = new File(execDir + "/" + "embeddings.bin");
+        File filteredFile = new File(execDir + "/" + "embeddings_filtered.txt");
+
+        try {
+            long newestInput = source.lastModified();
+            for (File corpus : corpora) {
+                newestInput = Math.max(newestInput, corpus.lastModified());
+            }
+            if (!binaryFile.isFile() || binaryFile.lastModified() < newestInput) {
+                System.out.println(currentTime() + "Converting embeddings " + embeddingPath + " into " + binaryFile + " . . .");
+                try (RunReport.Stage stage = runReport.start("embeddings", binaryFile.getPath())) {
+                    stage.input(embeddingPath).output(binaryFile.getPath()).sentences(0);
+                    EmbeddingStore.convert(source, EmbeddingStore.collectVocabulary(corpora), binaryFile);
+                }
+            }
+            if (!filteredFile.isFile() || filteredFile.lastModified() < binaryFile.lastModified()) {
+                try (EmbeddingStore store = EmbeddingStore.open(binaryFile)) {
+                    System.out.println(currentTime() + "Writing " + store.size() + " embeddings of dimension " + store.dimension() + " to " + filteredFile);
+                    store.writeText(filteredFile);
+                }
+            }
+            embeddingPath = filteredFile.getPath();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println(currentTime() + "Falling back to the full embedding file " + embeddingPath);
+        }
     }
 
     private void process() {
+        if (experimentType.equalsIgnoreCase("server")) {
+            serve();
+            return;
+        }
+        if (experimentType.equalsIgnoreCase("grid")) {
+            runGrid();
+            return;
+        }
+        outputDir = execDir;
+        if (sampleSeed != null) { // Samples of other seeds and folds must not overwrite each other's models
+            outputDir = execDir + "/" + "sample_" + sampleSeed + (folds > 0 ? "_fold_" + fold + "_of_" + folds : "");
+            System.out.println(currentTime() + "Sampling incremental sets with seed " + sampleSeed
+                    + (folds > 0 ? " leaving out fold " + fold + " of " + folds : "") + ", writing models and annotations to " + outputDir);
+            if (!new File(outputDir).mkdirs() && !new File(outputDir).isDirectory()) {
+                System.out.println(currentTime() + "Could not create " + outputDir);
+            }
+        }
         String trainPath, testPath, modelPath, testAnnotationsPath, selfTrainingPath, newTrainPath, previousTrainedPath;
         if (experimentType.equalsIgnoreCase("single")) {
             if (this.selfTrainingSizeSingle != 0) { // adaptation and retraining
@@ -96,127 +332,234 @@ public class DependencyParserDriver {
                 if (seedSizeSingle == -1) {
                     trainPath = execDir + "/" + seedSet + "_training.conllx";
                 } else {
-                    trainPath = execDir + "/" + seedSet + "_seed_self_training_" + String.valueOf(seedSizeSingle) + ".conllx";
+                    trainPath = seedSelfTrainingPath(seedSet, seedSizeSingle);
                 }
                 if (selfTrainingSizeSingle == -1) {
                     selfTrainingPath = execDir + "/" + testSet + "_training.conllx";
                 } else {
-                    selfTrainingPath = execDir + "/" + testSet + "_seed_self_training_" + String.valueOf(selfTrainingSizeSingle) + ".conllx";
+                    selfTrainingPath = seedSelfTrainingPath(testSet, selfTrainingSizeSingle);
                 }
-                modelPath = execDir + "/" + "model_" + seedSet + "_" + testSet + "_adapt";
-                testAnnotationsPath = execDir + "/" + "self_train_set_annotations" + seedSet + "_" + testSet + ".conllx";
+                modelPath = outputDir + "/" + "model_" + seedSet + "_" + testSet + "_adapt";
+                testAnnotationsPath = outputDir + "/" + "self_train_set_annotations" + seedSet + "_" + testSet + ".conllx";
+                long start = System.nanoTime();
+                double las = annotateTestSet(trainPath, selfTrainingPath, modelPath, testAnnotationsPath);
+                recordResult("single self training", testSet, seedSizeSingle, selfTrainingSizeSingle, modelPath, testAnnotationsPath, las, start);
                 System.out.println(currentTime() + "LAS score single self training: seed_set: " + seedSet + " test_set: " + testSet
-                        + " seed_size: " + seedSizeSingle + "self_training_size: " + selfTrainingSizeSingle + " las_score: "
-                        + annotateTestSet(trainPath, selfTrainingPath, modelPath, testAnnotationsPath));
+                        + " seed_size: " + seedSizeSingle + "self_training_size: " + selfTrainingSizeSingle + " las_score: " + las);
 
                 // Combine train file and new self_train_set_annotations into a new train file
-                newTrainPath = execDir + "/" + "combined_" + seedSet + "_" + testSet + "_seed_size_" + seedSizeSingle + ".conllx";
+                newTrainPath = outputDir + "/" + "combined_" + seedSet + "_" + testSet + "_seed_size_" + seedSizeSingle + ".conllx";
                 previousTrainedPath = modelPath;
-                concatenateFiles(trainPath, testAnnotationsPath, newTrainPath);
+                String selfTrainAnnotationsPath = testAnnotationsPath;
+                concatenateFiles(trainPath, selectSelfTrainingSentences(trainPath, selfTrainingPath, selfTrainAnnotationsPath), newTrainPath);
 
-                modelPath = execDir + "/" + "model_" + seedSet + "_" + testSet + "_adapt_combined";
-                testAnnotationsPath = execDir + "/" + "test_set_annotations" + seedSet + "_" + testSet + ".conllx";
+                modelPath = outputDir + "/" + "model_" + seedSet + "_" + testSet + "_adapt_combined";
+                testAnnotationsPath = outputDir + "/" + "test_set_annotations" + seedSet + "_" + testSet + ".conllx";
+                start = System.nanoTime();
+                las = retrain(trainPath, selfTrainingPath, selfTrainAnnotationsPath, previousTrainedPath, newTrainPath, testPath,
+                        modelPath, testAnnotationsPath);
+                recordResult("single self_trained", testSet, seedSizeSingle, selfTrainingSizeSingle, modelPath, testAnnotationsPath, las, start);
                 System.out.println(currentTime() + "LAS score single self_trained: seed_set: " + seedSet + " test_set: " + testSet
-                        + " seed_size: " + seedSizeSingle + "self_training_size: " + selfTrainingSizeSingle + " las_score: "
-                        + annotateTestSet(newTrainPath, testPath, modelPath, testAnnotationsPath, previousTrainedPath));
+                        + " seed_size: " + seedSizeSingle + "self_training_size: " + selfTrainingSizeSingle + " las_score: " + las);
             } else {
                 testPath = execDir + "/" + testSet + "_test.conllx";
                 if (seedSizeSingle == -1) {
                     trainPath = execDir + "/" + seedSet + "_training.conllx";
                 } else {
-                    trainPath = execDir + "/" + seedSet + "_seed_self_training_" + String.valueOf(seedSizeSingle) + ".conllx";
+                    trainPath = seedSelfTrainingPath(seedSet, seedSizeSingle);
                 }
-                modelPath = execDir + "/" + "model_" + seedSet + "_" + testSet;
-                testAnnotationsPath = execDir + "/" + "test_set_annotations_" + seedSet + "_" + testSet + ".conllx";
+                modelPath = outputDir + "/" + "model_" + seedSet + "_" + testSet;
+                testAnnotationsPath = outputDir + "/" + "test_set_annotations_" + seedSet + "_" + testSet + ".conllx";
+                long start = System.nanoTime();
+                double las = annotateTestSet(trainPath, testPath, modelPath, testAnnotationsPath);
+                recordResult("single", testSet, seedSizeSingle, 0, modelPath, testAnnotationsPath, las, start);
                 System.out.println(currentTime() + "LAS score single: seed_set: " + seedSet + " test_set: " + testSet
-                        + " seed_size: " + seedSizeSingle + " no self_training " + " las_score: "
-                        + annotateTestSet(trainPath, testPath, modelPath, testAnnotationsPath));
+                        + " seed_size: " + seedSizeSingle + " no self_training " + " las_score: " + las);
             }
         } else {
+            ExperimentScheduler scheduler = new ExperimentScheduler(schedulerParallelism);
+            scheduler.setJournal(journal, resume, journalContext());
+            System.out.println(currentTime() + "Scheduling batch experiments on " + scheduler.getParallelism() + " parallel workers");
             if (varySeedSize) {
-                List<Integer> incrementalSeedSizes;
-                if (seedSet.equalsIgnoreCase("wsj")) {
-                    incrementalSeedSizes = wsjSeedSetSizes;
-                } else {
-                    incrementalSeedSizes = brownSelfTrainingSizes;
-                }
-
-                for (int seedSize: incrementalSeedSizes) {
-                    // Train on seedSet and test on seedSet
-                    trainPath = execDir + "/" + seedSet + "_seed_self_training_" + String.valueOf(seedSize) + ".conllx";
-                    testPath = execDir + "/" + seedSet + "_test.conllx";
-                    modelPath = execDir + "/" + "model_seed_size_" + String.valueOf(seedSize) + "_" + seedSet + "_" + seedSet;
-                    testAnnotationsPath = execDir + "/" + "test_annotations_seed_size_" + String.valueOf(seedSize) + "_" + seedSet + "_" + seedSet + ".conllx";
-                    System.out.println(currentTime() + "LAS score II: seed_set: " + seedSet + " test_set: " + seedSet
-                            + " seed_size: " + seedSize + " las_score: "
-                            + annotateTestSet(trainPath, testPath, modelPath, testAnnotationsPath));
-
-                    // Train on seedSet and test on testSet
-                    trainPath = execDir + "/" + seedSet + "_seed_self_training_" + String.valueOf(seedSize) + ".conllx";
-                    testPath = execDir + "/" + testSet + "_test.conllx";
-                    modelPath = execDir + "/" + "model_seed_size_" + String.valueOf(seedSize) + "_" + seedSet + "_" + testSet;
-                    testAnnotationsPath = execDir + "/" + "test_annotations_seed_size_" + String.valueOf(seedSize) + "_" + seedSet + "_" + testSet + ".conllx";
-                    System.out.println(currentTime() + "LAS score IO: seed_set: " + seedSet + " test_set: " + testSet
-                            + " seed_size: " + seedSize + " las_score: "
-                            + annotateTestSet(trainPath, testPath, modelPath, testAnnotationsPath));
-
-                    // Train on seedSet, adapt on testSet and test on testSet
-                    trainPath = execDir + "/" + seedSet + "_seed_self_training_" + String.valueOf(seedSize) + ".conllx";
-                    selfTrainingPath = execDir + "/" + testSet + "_training.conllx";
-                    modelPath = execDir + "/" + "model_seed_size_" + String.valueOf(seedSize) + "_" + seedSet + "_" + testSet + "_" + "adapt";
-                    testAnnotationsPath = execDir + "/" + "self_train_set_annotations_seed_size_" + String.valueOf(seedSize) + "_" + seedSet + "_" + testSet + ".conllx";
-                    System.out.println(currentTime() + "LAS score IO self_training: seed_set: " + seedSet + " test_set: "
-                            + testSet + " seed_size: " + seedSize + " las_score: "
-                            + annotateTestSet(trainPath, selfTrainingPath, modelPath, testAnnotationsPath));
-
-                    // Combine train file and new self_train_set_annotations into a new train file
-                    newTrainPath = execDir + "/" + "combined_" + seedSet + "_" + testSet + "_seed_size_" + seedSize + ".conllx";
-                    concatenateFiles(trainPath, testAnnotationsPath, newTrainPath);
-                    previousTrainedPath = modelPath;
-
-                    testPath = execDir + "/" + testSet + "_test.conllx";
-                    modelPath = execDir + "/" + "model_seed_size_" + String.valueOf(seedSize) + "_" + seedSet + "_" + testSet + "_adapt_combined";
-                    testAnnotationsPath = execDir + "/" + "test_set_annotations_seed_size_" + String.valueOf(seedSize) + "_" + seedSet + "_" + testSet + ".conllx";
-                    System.out.println(currentTime() + "LAS score IO_self_trained: seed_set: " + seedSet + " test_set: "
-                            + testSet + " seed_size: " + seedSize + " las_score: "
-                            + annotateTestSet(newTrainPath, testPath, modelPath, testAnnotationsPath, previousTrainedPath));
+                for (int seedSize: config.sizes(seedSet)) {
+                    scheduleSeedSizeExperiments(scheduler, seedSize);
                 }
             } else {
-                List<Integer> incrementalSelfTrainingSizes;
-                if (seedSet.equalsIgnoreCase("wsj")) {
-                    incrementalSelfTrainingSizes = brownSelfTrainingSizes;
+                // The self-training sets are taken from the test corpus
+                scheduleSelfTrainingSizeExperiments(scheduler, config.getSelfTrainingSeedSize(), config.sizes(testSet));
+            }
+            try {
+                scheduler.run();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /*
+     Add the train/test steps for one seed size of a vary_seed_set_size batch. The seed model is trained once and scored
+     on the seed test set, the target test set and the self-training set in one go; only the retraining depends on the
+     self-training annotations.
+     */
+    private void scheduleSeedSizeExperiments(ExperimentScheduler scheduler, int seedSize) {
+        String trainPath = seedSelfTrainingPath(seedSet, seedSize);
+        // Named after the test set too, like every file of the experiment, so experiments on other test sets can run
+        // beside it; the model cache still trains the seed model only once
+        String seedModelPath = outputDir + "/" + "model_seed_size_" + String.valueOf(seedSize) + "_" + seedSet + "_" + testSet;
+
+        // Test on seedSet
+        String seedTestPath = execDir + "/" + seedSet + "_test.conllx";
+        String seedAnnotationsPath = outputDir + "/" + "seed_test_annotations_seed_size_" + String.valueOf(seedSize) + "_" + seedSet + "_" + testSet + ".conllx";
+        // Test on testSet
+        String testPath = execDir + "/" + testSet + "_test.conllx";
+        String testAnnotationsPath = outputDir + "/" + "test_annotations_seed_size_" + String.valueOf(seedSize) + "_" + seedSet + "_" + testSet + ".conllx";
+        // Adapt on testSet
+        String selfTrainingPath = execDir + "/" + testSet + "_training.conllx";
+        String selfTrainAnnotationsPath = outputDir + "/" + "self_train_set_annotations_seed_size_" + String.valueOf(seedSize) + "_" + seedSet + "_" + testSet + ".conllx";
+
+        scheduler.addTask("Seed model seed_size " + seedSize, Arrays.asList(trainPath, seedTestPath, testPath, selfTrainingPath),
+                Arrays.asList(seedModelPath, seedAnnotationsPath, testAnnotationsPath, selfTrainAnnotationsPath), () -> {
+                    long start = System.nanoTime();
+                    double[] lasScores = annotateTestSets(trainPath, seedModelPath, null,
+                            new String[]{seedTestPath, testPath, selfTrainingPath},
+                            new String[]{seedAnnotationsPath, testAnnotationsPath, selfTrainAnnotationsPath});
+                    recordResult("II", seedSet, seedSize, 0, seedModelPath, seedAnnotationsPath, lasScores[0], start);
+                    recordResult("IO", testSet, seedSize, 0, seedModelPath, testAnnotationsPath, lasScores[1], start);
+                    recordResult("IO self_training", testSet, seedSize, -1, seedModelPath, selfTrainAnnotationsPath, lasScores[2], start);
+                    return Arrays.asList(
+                            "LAS score II: seed_set: " + seedSet + " test_set: " + seedSet + " seed_size: " + seedSize
+                                    + " las_score: " + lasScores[0],
+                            "LAS score IO: seed_set: " + seedSet + " test_set: " + testSet + " seed_size: " + seedSize
+                                    + " las_score: " + lasScores[1],
+                            "LAS score IO self_training: seed_set: " + seedSet + " test_set: " + testSet + " seed_size: "
+                                    + seedSize + " las_score: " + lasScores[2]);
+                });
+
+        // Combine train file and new self_train_set_annotations into a new train file
+        String newTrainPath = outputDir + "/" + "combined_" + seedSet + "_" + testSet + "_seed_size_" + seedSize + ".conllx";
+        List<String> combineOutputs = new ArrayList<>(selectionOutputs(selfTrainAnnotationsPath));
+        combineOutputs.add(newTrainPath);
+        scheduler.addTask("Combine seed_size " + seedSize, Arrays.asList(trainPath, selfTrainingPath, selfTrainAnnotationsPath), combineOutputs,
+                () -> concatenateFiles(trainPath, selectSelfTrainingSentences(trainPath, selfTrainingPath, selfTrainAnnotationsPath), newTrainPath));
+
+        String combinedModelPath = outputDir + "/" + "model_seed_size_" + String.valueOf(seedSize) + "_" + seedSet + "_" + testSet + "_adapt_combined";
+        String combinedAnnotationsPath = outputDir + "/" + "test_set_annotations_seed_size_" + String.valueOf(seedSize) + "_" + seedSet + "_" + testSet + ".conllx";
+        scheduler.addTask("IO_self_trained seed_size " + seedSize, Arrays.asList(newTrainPath, testPath, seedModelPath, selfTrainAnnotationsPath),
+                Arrays.asList(combinedModelPath, combinedAnnotationsPath), () -> {
+                    long start = System.nanoTime();
+                    double las = retrain(trainPath, selfTrainingPath, selfTrainAnnotationsPath, seedModelPath, newTrainPath, testPath,
+                            combinedModelPath, combinedAnnotationsPath);
+                    recordResult("IO_self_trained", testSet, seedSize, -1, combinedModelPath, combinedAnnotationsPath, las, start);
+                    return Collections.singletonList("LAS score IO_self_trained: seed_set: " + seedSet + " test_set: "
+                            + testSet + " seed_size: " + seedSize + " las_score: " + las);
+                });
+    }
+
+    /*
+     Add the steps of a vary_self_training_size batch. Every size adapts the same seed model, so it is trained once and
+     annotates all self-training sets in one go; the retraining of each size can then run independently.
+     */
+    private void scheduleSelfTrainingSizeExperiments(ExperimentScheduler scheduler, int seedSize, List<Integer> selfTrainingSizes) {
+        String trainPath = seedSelfTrainingPath(seedSet, seedSize);
+        String seedModelPath = outputDir + "/" + "model_seed_size_" + String.valueOf(seedSize) + "_" + seedSet + "_" + testSet + "_" + "adapt";
+
+        List<String> inputs = new ArrayList<>();
+        List<String> outputs = new ArrayList<>();
+        String[] selfTrainingPaths = new String[selfTrainingSizes.size()];
+        String[] selfTrainAnnotationsPaths = new String[selfTrainingSizes.size()];
+        inputs.add(trainPath);
+        outputs.add(seedModelPath);
+        for (int i = 0; i < selfTrainingSizes.size(); i++) {
+            int selfTrainingSize = selfTrainingSizes.get(i);
+            selfTrainingPaths[i] = seedSelfTrainingPath(testSet, selfTrainingSize);
+            selfTrainAnnotationsPaths[i] = outputDir + "/" + "self_train_set_annotations_self_training_size_" + String.valueOf(selfTrainingSize) + "_" + seedSet + "_" + testSet + ".conllx";
+            inputs.add(selfTrainingPaths[i]);
+            outputs.add(selfTrainAnnotationsPaths[i]);
+        }
+
+        // Train on seedSet, adapt on testSet
+        scheduler.addTask("Seed model self training", inputs, outputs, () -> {
+            long start = System.nanoTime();
+            double[] lasScores = annotateTestSets(trainPath, seedModelPath, null, selfTrainingPaths, selfTrainAnnotationsPaths);
+            List<String> result = new ArrayList<>();
+            for (int i = 0; i < lasScores.length; i++) {
+                recordResult("IO self training", testSet, seedSize, selfTrainingSizes.get(i), seedModelPath, selfTrainAnnotationsPaths[i],
+                        lasScores[i], start);
+                result.add("LAS score IO self training: seed_set: " + seedSet + " test_set: " + testSet
+                        + " self_training_size: " + selfTrainingSizes.get(i) + " las_score: " + lasScores[i]);
+            }
+            return result;
+        });
+
+        for (int i = 0; i < selfTrainingSizes.size(); i++) {
+            int selfTrainingSize = selfTrainingSizes.get(i);
+            String selfTrainingPath = selfTrainingPaths[i];
+            String selfTrainAnnotationsPath = selfTrainAnnotationsPaths[i];
+
+            // Combine train file and new self_train_set_annotations into a new train file
+            String newTrainPath = outputDir + "/" + "combined_" + seedSet + "_" + testSet + "_self_training_size_" + selfTrainingSize + ".conllx";
+            List<String> combineOutputs = new ArrayList<>(selectionOutputs(selfTrainAnnotationsPath));
+            combineOutputs.add(newTrainPath);
+            scheduler.addTask("Combine self_training_size " + selfTrainingSize, Arrays.asList(trainPath, selfTrainingPath, selfTrainAnnotationsPath), combineOutputs,
+                    () -> concatenateFiles(trainPath, selectSelfTrainingSentences(trainPath, selfTrainingPath, selfTrainAnnotationsPath), newTrainPath));
+
+            // Test on testSet
+            String testPath = execDir + "/" + testSet + "_test.conllx";
+            String combinedModelPath = outputDir + "/" + "model_self_training_size_" + String.valueOf(selfTrainingSize) + "_" + seedSet + "_" + testSet + "_adapt_combined";
+            String combinedAnnotationsPath = outputDir + "/" + "test_set_annotations_self_training_size_" + String.valueOf(selfTrainingSize) + "_" + seedSet + "_" + testSet + ".conllx";
+            scheduler.addTask("IO_self_trained self_training_size " + selfTrainingSize, Arrays.asList(newTrainPath, testPath, seedModelPath, selfTrainAnnotationsPath),
+                    Arrays.asList(combinedModelPath, combinedAnnotationsPath), () -> {
+                        long start = System.nanoTime();
+                        double las = retrain(trainPath, selfTrainingPath, selfTrainAnnotationsPath, seedModelPath, newTrainPath, testPath,
+                                combinedModelPath, combinedAnnotationsPath);
+                        recordResult("IO_self_trained", testSet, seedSize, selfTrainingSize, combinedModelPath, combinedAnnotationsPath, las, start);
+                        return Collections.singletonList("LAS score IO_self_trained: seed_set: " + seedSet + " test_set: "
+                                + testSet + " self_training_size: " + selfTrainingSize + " las_score: " + las);
+                    });
+        }
+    }
+
+    /*
+     Split "--name" and "--name=value" options from the positional arguments.
+     */
+    private String[] parseOptions(String[] args) {
+        options = new HashMap<>();
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                int equals = arg.indexOf('=');
+                if (equals < 0) {
+                    options.put(arg.substring(2), "true");
                 } else {
-                    incrementalSelfTrainingSizes = wsjSeedSetSizes;
-                }
-                int seedSize = 10000;
-                for (int selfTrainingSize: incrementalSelfTrainingSizes) {
-                    // Train on seedSet, adapt on testSet and test on testSet
-                    trainPath = execDir + "/" + seedSet + "_seed_self_training_" + String.valueOf(seedSize) + ".conllx";
-                    selfTrainingPath = execDir + "/" + testSet + "_seed_self_training_" + String.valueOf(selfTrainingSize) + ".conllx";
-
-                    modelPath = execDir + "/" + "model_self_training_size_" + String.valueOf(selfTrainingSize) + "_" + seedSet + "_" + testSet + "_" + "adapt";
-                    testAnnotationsPath = execDir + "/" + "self_train_set_annotations_self_training_size_" + String.valueOf(selfTrainingSize) + "_" + seedSet + "_" + testSet + ".conllx";
-                    System.out.println(currentTime() + "LAS score IO self training: seed_set: " + seedSet + " test_set: "
-                            + testSet + " self_training_size: " + selfTrainingSize + " las_score: "
-                            + annotateTestSet(trainPath, selfTrainingPath, modelPath, testAnnotationsPath));
-
-                    // Combine train file and new self_train_set_annotations into a new train file
-                    newTrainPath = execDir + "/" + "combined_" + seedSet + "_" + testSet + "_self_training_size_" + selfTrainingSize + ".conllx";
-                    concatenateFiles(trainPath, testAnnotationsPath, newTrainPath);
-                    previousTrainedPath = modelPath;
-
-                    testPath = execDir + "/" + testSet + "_test.conllx";
-                    modelPath = execDir + "/" + "model_self_training_size_" + String.valueOf(selfTrainingSize) + "_" + seedSet + "_" + testSet + "_adapt_combined";
-                    testAnnotationsPath = execDir + "/" + "test_set_annotations_self_training_size_" + String.valueOf(selfTrainingSize) + "_" + seedSet + "_" + testSet + ".conllx";
-                    System.out.println(currentTime() + "LAS score IO_self_trained: seed_set: " + seedSet + " test_set: "
-                            + testSet + " self_training_size: " + selfTrainingSize + " las_score: "
-                            + annotateTestSet(newTrainPath, testPath, modelPath, testAnnotationsPath, previousTrainedPath));
+                    options.put(arg.substring(2, equals), arg.substring(equals + 1));
                 }
+            } else {
+                positional.add(arg);
             }
         }
+        return positional.toArray(new String[0]);
     }
 
     private void parseCommandLineArgs(String[] args) {
+        args = parseOptions(args);
+        parseExperimentOptions();
+        try {
+            config = options.containsKey("config") ? ExperimentConfig.load(new File(options.get("config"))) : new ExperimentConfig();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Could not read grid configuration " + options.get("config") + ", using the default grid");
+            config = new ExperimentConfig();
+        }
+        if (args.length >= 6 && (args[5].equalsIgnoreCase("server") || args[5].equalsIgnoreCase("grid"))) {
+            this.execDir = args[0];
+            this.wsjSeedPath = args[1];
+            this.wsjTestPath = args[2];
+            this.brownCorpusBasePath = args[3];
+            this.embeddingPath = args[4];
+            this.experimentType = args[5];
+            return;
+        }
         if (args.length < 9) {
             printUsage();
         }
@@ -224,68 +567,208 @@ public class DependencyParserDriver {
         this.wsjSeedPath = args[1];
         this.wsjTestPath = args[2];
         this.brownCorpusBasePath = args[3];
-        this.seedSet = args[4];
-        this.testSet = args[5];
         this.embeddingPath = args[6];
-        this.experimentType = args[7];
+        List<String> experimentArgs = new ArrayList<>(Arrays.asList(args[4], args[5], args[7], args[8]));
+        if (args.length >= 10) {
+            experimentArgs.add(args[9]);
+        }
+        parseExperimentArgs(experimentArgs.toArray(new String[0]));
+    }
+
+    private void parseExperimentOptions() {
+        this.binaryCorpora = Boolean.parseBoolean(options.getOrDefault("binary-corpora", "false"));
+        this.lengthBuckets = Boolean.parseBoolean(options.getOrDefault("length-buckets", "false"));
+        this.dedupNear = Double.parseDouble(options.getOrDefault("dedup-near", "0"));
+        this.dedup = Boolean.parseBoolean(options.getOrDefault("dedup", "false")) || dedupNear > 0;
+        this.selectTopK = Integer.parseInt(options.getOrDefault("select-top-k", "0"));
+        this.selectThreshold = Double.parseDouble(options.getOrDefault("select-threshold", "0"));
+        this.selectScorer = options.getOrDefault("select-scorer", "agreement");
+        if (!selectScorer.equals("agreement") && !selectScorer.equals("length")) {
+            System.out.println("Invalid selection scorer " + selectScorer + " given. Please provide agreement or length. ");
+        }
+        this.rounds = Integer.parseInt(options.getOrDefault("rounds", "1"));
+        this.minGain = Double.parseDouble(options.getOrDefault("min-gain", "0.1"));
+        this.devPath = options.get("dev");
+        if (rounds > 1 && devPath == null) { // Stopping on a reported test set would tune the rounds to it
+            throw new IllegalArgumentException("--rounds=" + rounds + " needs --dev=<dev_set_path> held out from every test set");
+        }
+        this.resume = Boolean.parseBoolean(options.getOrDefault("resume", "false"));
+        this.sampleSeed = options.containsKey("sample-seed") ? Long.valueOf(options.get("sample-seed")) : null;
+        this.folds = Integer.parseInt(options.getOrDefault("folds", "0"));
+        this.fold = Integer.parseInt(options.getOrDefault("fold", "0"));
+        if (folds > 0 && (sampleSeed == null || fold < 0 || fold >= folds)) {
+            System.out.println("Invalid fold " + fold + " of " + folds + " given. Please provide --sample-seed and 0 <= fold < folds. ");
+        }
+    }
+
+    /*
+     Settings which change the results of a batch step besides its files, told apart in the journal.
+     */
+    private String journalContext() {
+        Map<String, String> settings = new TreeMap<>(options);
+        settings.keySet().removeAll(Arrays.asList("resume", "workers", "spool", "config", "length-buckets", "results"));
+        return settings + " " + new TreeMap<>(parserProperties(config.getMaxIter())) + " " + embeddingPath;
+    }
+
+    /*
+     Append one LAS score, scored on resultTestSet, to the result store. The sample is kept apart from the settings so
+     curves average over samples and folds.
+     */
+    private void recordResult(String kind, String resultTestSet, int seedSize, int selfTrainingSize, String modelPath,
+                              String annotationsPath, double las, long startNanos) {
+        if (resultStore == null) {
+            return;
+        }
+        ResultStore.Record record = new ResultStore.Record();
+        record.time = System.currentTimeMillis();
+        record.kind = kind;
+        record.seedSet = seedSet;
+        record.testSet = resultTestSet;
+        record.seedSize = seedSize;
+        record.selfTrainingSize = selfTrainingSize;
+        if (sampleSeed != null) {
+            record.sample = "seed " + sampleSeed + (folds > 0 ? " fold " + fold + " of " + folds : "");
+        }
+        Map<String, String> settings = new TreeMap<>(options);
+        settings.keySet().removeAll(Arrays.asList("resume", "workers", "spool", "config", "length-buckets", "results",
+                "sample-seed", "folds", "fold"));
+        record.settings = settings + " " + new TreeMap<>(parserProperties(config.getMaxIter())) + " " + embeddingPath;
+        record.model = modelPath;
+        record.annotations = annotationsPath;
+        record.las = las;
+        record.seconds = (System.nanoTime() - startNanos) / 1e9;
+        if (!experimentType.equalsIgnoreCase("single")) {
+            record.varied = varySeedSize ? "seed_size" : "self_training_size";
+        }
+        try {
+            resultStore.append(record);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println(currentTime() + "Could not record the result in " + resultStore.getFile());
+        }
+    }
+
+    /*
+     <seed_corpus_name> <test_corpus_name> <single/batch> <seed_set_size/vary_method> [<self_training_size>]
+     */
+    private void parseExperimentArgs(String[] args) {
+        this.experimentArgs = args;
+        this.seedSet = args[0];
+        this.testSet = args[1];
+        this.experimentType = args[2];
 
         validateSeedTestCorpus(this.seedSet);
         validateSeedTestCorpus(this.testSet);
         validateExperimentType(this.experimentType);
 
         if (experimentType.equalsIgnoreCase("single")) {
-            if (args[8].equalsIgnoreCase("full")) {
+            if (args[3].equalsIgnoreCase("full")) {
                 seedSizeSingle = -1;
             } else {
-                seedSizeSingle = Integer.parseInt(args[8]);
+                seedSizeSingle = Integer.parseInt(args[3]);
             }
-            if (args.length >= 10) {
-                if (args[9].equalsIgnoreCase("full")) {
+            if (args.length >= 5) {
+                if (args[4].equalsIgnoreCase("full")) {
                     selfTrainingSizeSingle = -1;
                 } else {
-                    selfTrainingSizeSingle = Integer.parseInt(args[9]);
+                    selfTrainingSizeSingle = Integer.parseInt(args[4]);
                 }
             } else {
                 selfTrainingSizeSingle = 0; // It means no adaptation and so retraining
             }
         } else {
-            if (args[8].equalsIgnoreCase("vary_seed_set_size")) {
+            if (args[3].equalsIgnoreCase("vary_seed_set_size")) {
                 this.varySeedSize = true;
                 this.varySelfTrainingSize = false;
-            } else if (args[8].equalsIgnoreCase("vary_self_training_size")) {
+            } else if (args[3].equalsIgnoreCase("vary_self_training_size")) {
                 this.varySeedSize = false;
                 this.varySelfTrainingSize = true;
             } else {
-                System.out.println("Invalid vary method for batch " + args[8] + " given. Please provide vary_seed_set_size or vary_self_training_size. ");
+                System.out.println("Invalid vary method for batch " + args[3] + " given. Please provide vary_seed_set_size or vary_self_training_size. ");
             }
         }
     }
 
     /*
-     Train and test the model over the given training and test set and returns the LAS score obtained.
+     Keep the preprocessed corpora, prefix indexes, prepared embeddings and model cache of this process and run the
+     experiment specs dropped into the spool directory on a pool of workers, so each experiment only pays for its own
+     training and testing. Experiments on the same seed and test corpora write the same files, so they run one after
+     the other.
      */
-    private double annotateTestSet(String trainPath, String testPath, String modelPath, String testAnnotationsPath) {
-        System.out.println(currentTime() + "Annotating test set: Training over " + trainPath + ", testing on "
-                + testPath + " and storing annotations to " + testAnnotationsPath + " using " + modelPath
-                + " as the model directory");
-        // Configuring propreties for the parser. A full list of properties can be found
-        // here https://nlp.stanford.edu/software/nndep.shtml
-        Properties prop = new Properties();
-        prop.setProperty("maxIter", "200");
-
-        DependencyParser p = new DependencyParser(prop);
+    private void serve() {
+        int workers = Integer.parseInt(options.getOrDefault("workers", String.valueOf(schedulerParallelism)));
+        ExperimentSpool spool = new ExperimentSpool(new File(options.getOrDefault("spool", execDir + "/" + "spool")), workers);
+        experimentLocks = new ConcurrentHashMap<>();
+        System.out.println(currentTime() + "Serving experiment specs from " + spool.getDirectory() + " on " + spool.getWorkers() + " workers");
+        try {
+            spool.serve((name, args) -> {
+                DependencyParserDriver experiment = new DependencyParserDriver(this, args, spool.getWorkers());
+                Object lock = experimentLocks.computeIfAbsent(experiment.seedSet.toLowerCase() + "_" + experiment.testSet.toLowerCase(), key -> new Object());
+                synchronized (lock) {
+                    System.out.println(currentTime() + "Running experiment " + name + ": " + String.join(" ", args));
+                    try (RunReport.Stage stage = runReport.start("experiment", name)) {
+                        stage.sentences(0);
+                        experiment.process();
+                    }
+                    System.out.println(currentTime() + "Finished experiment " + name);
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            Thread.currentThread().interrupt();
+        }
+        System.out.println(currentTime() + "Server stopped");
+    }
 
-        // Argument 1 - Training Path
-        // Argument 2 - Dev Path (can be null)
-        // Argument 3 - Path where model is saved
-        // Argument 4 - Path to embedding vectors (can be null)
-        p.train(trainPath, null, modelPath, embeddingPath);
+    /*
+     Run the planned experiments of the grid one after the other, all on the corpora preprocessed for the grid.
+     */
+    private void runGrid() {
+        List<String[]> plan = config.plan();
+        System.out.println(currentTime() + "Running " + plan.size() + " planned experiments of " + options.get("config"));
+        for (String[] experimentArgs : plan) {
+            String name = String.join(" ", experimentArgs);
+            System.out.println(currentTime() + "Running experiment " + name);
+            try (RunReport.Stage stage = runReport.start("experiment", name)) {
+                stage.sentences(0);
+                new DependencyParserDriver(this, experimentArgs, 1).process();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                System.out.println(currentTime() + "Experiment " + name + " failed");
+            }
+        }
+    }
 
-        // Load a saved path
-        DependencyParser model = DependencyParser.loadFromModelFile(modelPath);
+    /*
+     Sizes of the incremental sets of the corpus the preprocessing has to index: every size of the grid for a server,
+     which cannot know its experiments in advance, otherwise only the sizes the planned experiments read.
+     */
+    private List<Integer> indexedSizes(String corpus) {
+        if (experimentType.equalsIgnoreCase("server")) {
+            List<String[]> everything = Arrays.asList(new String[]{corpus, corpus, "batch", "vary_seed_set_size"},
+                    new String[]{corpus, corpus, "batch", "vary_self_training_size"});
+            return config.requiredSizes(corpus, everything);
+        }
+        List<String[]> plan = new ArrayList<>();
+        for (String[] experiment : experimentType.equalsIgnoreCase("grid") ? config.plan() : Collections.singletonList(experimentArgs)) {
+            List<String> positional = new ArrayList<>();
+            for (String arg : experiment) {
+                if (!arg.startsWith("--")) {
+                    positional.add(arg);
+                }
+            }
+            plan.add(positional.toArray(new String[0]));
+        }
+        return config.requiredSizes(corpus, plan);
+    }
 
-        // Test model on test data, write annotations to testAnnotationsPath
-        return model.testCoNLL(testPath, testAnnotationsPath);
+    /*
+     Train and test the model over the given training and test set and returns the LAS score obtained.
+     */
+    private double annotateTestSet(String trainPath, String testPath, String modelPath, String testAnnotationsPath) {
+        return annotateTestSet(trainPath, testPath, modelPath, testAnnotationsPath, null);
     }
 
     /*
@@ -293,33 +776,329 @@ public class DependencyParserDriver {
       Train and test the model over the given training and test set and returns the LAS score obtained.
      */
     private double annotateTestSet(String trainPath, String testPath, String modelPath, String testAnnotationsPath, String previousTrainedModelPath) {
-        System.out.println(currentTime() + "Annotating test set: Training over " + trainPath + ", testing on "
-                + testPath + " and storing annotations to " + testAnnotationsPath + " using " + modelPath
-                + " as the model directory");
-        // Configuring propreties for the parser. A full list of properties can be found
+        return annotateTestSets(trainPath, modelPath, previousTrainedModelPath, new String[]{testPath}, new String[]{testAnnotationsPath})[0];
+    }
+
+    /*
+     Train the model once and score it against every given test set, returning the LAS score obtained on each.
+     The model is loaded from disk at most once. Models and annotations already produced from identical inputs are
+     restored from the model cache instead. A failing cache only costs its entries: the model is still trained at most
+     once, and errors of annotation or evaluation are thrown.
+     */
+    private double[] annotateTestSets(String trainPath, String modelPath, String previousTrainedModelPath, String[] testPaths, String[] testAnnotationsPaths) {
+        return annotateTestSets(trainPath, modelPath, previousTrainedModelPath, testPaths, testAnnotationsPaths, embeddingPath,
+                parserProperties(config.getMaxIter()));
+    }
+
+    /*
+     Same as above, training with the given embeddings (null for none) and parser properties.
+     */
+    private double[] annotateTestSets(String trainPath, String modelPath, String previousTrainedModelPath, String[] testPaths,
+                                      String[] testAnnotationsPaths, String modelEmbeddingPath, Properties prop) {
+        System.out.println(currentTime() + "Annotating test sets: Training over " + trainPath + ", testing on "
+                + Arrays.toString(testPaths) + " and storing annotations to " + Arrays.toString(testAnnotationsPaths)
+                + " using " + modelPath + " as the model directory");
+        double[] lasScores = new double[testPaths.length];
+        String modelKey = null; // null while the model cache is unavailable
+        try {
+            modelKey = modelCache.modelKey(trainPath, modelEmbeddingPath, previousTrainedModelPath, prop);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println(currentTime() + "Model cache unavailable, training " + modelPath + " without it");
+        }
+        if (modelKey == null) {
+            trainModel(prop, trainPath, modelPath, previousTrainedModelPath, modelEmbeddingPath);
+        } else {
+            synchronized (modelCache.lock(modelKey)) {
+                if (restoreModel(modelKey, modelPath)) {
+                    System.out.println(currentTime() + "Model cache hit: restored " + modelPath + " without training");
+                } else {
+                    trainModel(prop, trainPath, modelPath, previousTrainedModelPath, modelEmbeddingPath);
+                    try {
+                        modelCache.storeModel(modelKey, modelPath);
+                    } catch (IOException e) { // The model is trained, only later runs lose the cache entry
+                        e.printStackTrace();
+                        System.out.println(currentTime() + "Could not store " + modelPath + " in the model cache, continuing without it");
+                    }
+                }
+            }
+        }
+
+        DependencyParser model = null;
+        for (int i = 0; i < testPaths.length; i++) {
+            String annotationKey = null;
+            if (modelKey != null) {
+                try {
+                    annotationKey = modelCache.annotationKey(modelKey, testPaths[i]);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    System.out.println(currentTime() + "Model cache unavailable, testing on " + testPaths[i] + " without it");
+                }
+            }
+            synchronized (annotationKey != null ? modelCache.lock(annotationKey) : new Object()) {
+                Double lasScore = annotationKey != null ? restoreAnnotations(annotationKey, testAnnotationsPaths[i]) : null;
+                if (lasScore != null) {
+                    System.out.println(currentTime() + "Model cache hit: restored " + testAnnotationsPaths[i] + " without testing");
+                } else {
+                    if (model == null) {
+                        model = loadModel(modelPath);
+                    }
+                    // Large inputs such as the self-training set are parsed shard by shard on all cores
+                    try (RunReport.Stage stage = runReport.start("test", testAnnotationsPaths[i])) {
+                        stage.input(testPaths[i]).output(testAnnotationsPaths[i]);
+                        lasScore = parallelAnnotator.annotate(model, testPaths[i], testAnnotationsPaths[i]);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("Could not annotate " + testPaths[i] + " into " + testAnnotationsPaths[i], e);
+                    }
+                    if (annotationKey != null) {
+                        try {
+                            modelCache.storeAnnotations(annotationKey, testAnnotationsPaths[i], lasScore);
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                            System.out.println(currentTime() + "Could not store " + testAnnotationsPaths[i] + " in the model cache, continuing without it");
+                        }
+                    }
+                }
+                lasScores[i] = lasScore;
+            }
+            reportEvaluation(testPaths[i], testAnnotationsPaths[i]);
+        }
+        return lasScores;
+    }
+
+    /*
+     Copy the cached model into modelPath, returning false on a cache miss or if the cache cannot be read.
+     */
+    private boolean restoreModel(String modelKey, String modelPath) {
+        try {
+            return modelCache.restoreModel(modelKey, modelPath);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println(currentTime() + "Could not restore " + modelPath + " from the model cache, training it");
+            return false;
+        }
+    }
+
+    /*
+     Copy the cached annotations into annotationsPath and return their LAS score, or null on a cache miss or if the
+     cache cannot be read.
+     */
+    private Double restoreAnnotations(String annotationKey, String annotationsPath) {
+        try {
+            return modelCache.restoreAnnotations(annotationKey, annotationsPath);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println(currentTime() + "Could not restore " + annotationsPath + " from the model cache, testing again");
+            return null;
+        }
+    }
+
+    private Properties parserProperties(int maxIter) {
+        // Configuring propreties for the parser, from the parser.* keys of the grid. A full list of properties can be found
         // here https://nlp.stanford.edu/software/nndep.shtml
-        Properties prop = new Properties();
-        prop.setProperty("maxIter", "200");
+        return config.parserProperties(maxIter);
+    }
+
+    /*
+     Retrain on the seed set plus the self-training annotations, already combined into newTrainPath, warm starting from
+     the seed model, and return the LAS score on the test set. With --rounds=N the retraining is repeated: every round
+     warm starts from the previous round's model and retrains on the seed set plus the latest annotations. Only the
+     self-training sentences whose annotation changed in the previous round are parsed again. The one full training
+     budget is split over the rounds (maxIter/2, maxIter/4, ...), and the rounds stop early once the dev set LAS
+     improves by less than --min-gain. The test score of the round with the best dev score is returned. The dev set
+     has to be given with --dev and cannot be one of the reported test sets.
+     */
+    private double retrain(String trainPath, String selfTrainingPath, String selfTrainAnnotationsPath, String seedModelPath,
+                           String newTrainPath, String testPath, String modelPath, String testAnnotationsPath) {
+        if (rounds <= 1) {
+            return annotateTestSet(newTrainPath, testPath, modelPath, testAnnotationsPath, seedModelPath);
+        }
+        String roundDevPath = devPath;
+        for (String reportedPath : Arrays.asList(testPath, execDir + "/" + seedSet + "_test.conllx")) {
+            if (new File(roundDevPath).getAbsoluteFile().equals(new File(reportedPath).getAbsoluteFile())) {
+                throw new IllegalArgumentException("--dev " + devPath + " is the reported test set " + reportedPath);
+            }
+        }
+        String previousModelPath = seedModelPath;
+        String olderAnnotationsPath = null; // Self-training annotations of the round before the latest
+        String annotationsPath = selfTrainAnnotationsPath; // Latest self-training annotations
+        double bestDevLas = Double.NEGATIVE_INFINITY;
+        double bestTestLas = 0.0;
+        int bestRound = 0;
+        for (int round = 1; round <= rounds; round++) {
+            String roundSuffix = round == 1 ? "" : "_round_" + round;
+            String roundTrainPath = withSuffix(newTrainPath, roundSuffix);
+            if (round > 1) {
+                concatenateFiles(trainPath, selectSelfTrainingSentences(trainPath, selfTrainingPath, annotationsPath), roundTrainPath);
+            }
+            String roundModelPath = modelPath + roundSuffix;
+            int maxIter = Math.max(MIN_ROUND_MAX_ITER, config.getMaxIter() >> round);
+            boolean annotateAll = round == 1 && rounds > 1; // Nothing to compare the first round's annotations with yet
+            String nextAnnotationsPath = withSuffix(selfTrainAnnotationsPath, "_round_" + round);
+
+            List<String> roundTestPaths = new ArrayList<>(Arrays.asList(roundDevPath, testPath));
+            List<String> roundAnnotationsPaths = new ArrayList<>(Arrays.asList(withSuffix(testAnnotationsPath, "_dev" + roundSuffix),
+                    withSuffix(testAnnotationsPath, roundSuffix)));
+            if (annotateAll) {
+                roundTestPaths.add(selfTrainingPath);
+                roundAnnotationsPaths.add(nextAnnotationsPath);
+            }
+            double[] lasScores = annotateTestSets(roundTrainPath, roundModelPath, previousModelPath, roundTestPaths.toArray(new String[0]),
+                    roundAnnotationsPaths.toArray(new String[0]), embeddingPath, parserProperties(maxIter));
+            System.out.println(currentTime() + "Self-training round " + round + " of " + roundModelPath + ": maxIter " + maxIter
+                    + " dev_las: " + lasScores[0] + " test_las: " + lasScores[1]);
+
+            boolean plateau = lasScores[0] < bestDevLas + minGain;
+            if (lasScores[0] > bestDevLas) {
+                bestDevLas = lasScores[0];
+                bestTestLas = lasScores[1];
+                bestRound = round;
+            }
+            if (plateau) {
+                System.out.println(currentTime() + "Dev LAS gained less than " + minGain + " in round " + round + ", stopping");
+                break;
+            }
+            if (round == rounds) {
+                break;
+            }
+            if (!annotateAll) {
+                try {
+                    if (reannotateChanged(roundModelPath, selfTrainingPath, olderAnnotationsPath, annotationsPath, nextAnnotationsPath) == 0) {
+                        System.out.println(currentTime() + "No self-training annotation changed in round " + round + ", stopping");
+                        break;
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    break;
+                }
+            }
+            olderAnnotationsPath = annotationsPath;
+            annotationsPath = nextAnnotationsPath;
+            previousModelPath = roundModelPath;
+        }
+        System.out.println(currentTime() + "Best self-training round " + bestRound + " dev_las: " + bestDevLas + " test_las: " + bestTestLas);
+        return bestTestLas;
+    }
 
+    /*
+     Annotate the self-training set with the model, reusing the latest annotation of every sentence whose annotation
+     did not change between the two previous rounds. Returns the number of sentences parsed again.
+     */
+    private int reannotateChanged(String modelPath, String selfTrainingPath, String olderAnnotationsPath, String annotationsPath,
+                                  String nextAnnotationsPath) throws IOException {
+        float[] agreement = SelfTrainingSelector.agreementScores(new File(annotationsPath), new File(olderAnnotationsPath));
+        boolean[] changed = new boolean[agreement.length];
+        int changedCount = 0;
+        for (int i = 0; i < agreement.length; i++) {
+            changed[i] = agreement[i] < 1.0f;
+            changedCount += changed[i] ? 1 : 0;
+        }
+        System.out.println(currentTime() + "Parsing " + changedCount + " of " + agreement.length + " self-training sentences again with " + modelPath);
+        if (changedCount == 0) {
+            return 0;
+        }
+        String changedPath = withSuffix(nextAnnotationsPath, "_changed_input");
+        String changedAnnotationsPath = withSuffix(nextAnnotationsPath, "_changed");
+        ConllxFiles.writeSentences(new File(selfTrainingPath), changed, new File(changedPath));
+        parallelAnnotator.annotate(loadModel(modelPath), changedPath, changedAnnotationsPath);
+        ConllxFiles.replaceSentences(new File(annotationsPath), changed, new File(changedAnnotationsPath), new File(nextAnnotationsPath));
+        return changedCount;
+    }
+
+    /*
+     Insert the suffix before the .conllx extension, if there is one.
+     */
+    private static String withSuffix(String path, String suffix) {
+        if (path.endsWith(".conllx")) {
+            return path.substring(0, path.length() - ".conllx".length()) + suffix + ".conllx";
+        }
+        return path + suffix;
+    }
+
+    /*
+     Print UAS and the per-genre scores of the annotations and write the full breakdown, including every DEPREL, to
+     <annotations>.eval.tsv.
+     */
+    private void reportEvaluation(String testPath, String testAnnotationsPath) {
+        ConllEvaluator evaluator = new ConllEvaluator();
+        LinkedHashMap<String, Integer> genreCounts = new LinkedHashMap<>();
+        if (testPath.equals(execDir + "/" + "brown_test.conllx")) {
+            genreCounts = preprocessor.readBrownGenreCounts(true);
+        } else if (testPath.equals(execDir + "/" + "brown_training.conllx")) {
+            genreCounts = preprocessor.readBrownGenreCounts(false);
+        }
+        int[] sentenceCounts = new int[genreCounts.size()];
+        int i = 0;
+        for (int count : genreCounts.values()) {
+            sentenceCounts[i++] = count;
+        }
+        evaluator.setSegments(new ArrayList<>(genreCounts.keySet()), sentenceCounts);
+
+        try (RunReport.Stage stage = runReport.start("evaluate", testAnnotationsPath)) {
+            stage.input(testPath, testAnnotationsPath);
+            parallelAnnotator.evaluate(evaluator, testPath, testAnnotationsPath);
+            stage.sentences(evaluator.getSentences());
+            System.out.println(currentTime() + "Evaluation of " + testAnnotationsPath + ": LAS " + evaluator.las()
+                    + " UAS " + evaluator.uas() + " scored_tokens " + evaluator.getScoredTokens());
+            for (String line : evaluator.segmentReport().split("\n")) {
+                if (!line.isEmpty()) {
+                    System.out.println(currentTime() + "  genre " + line);
+                }
+            }
+            try (AtomicFile file = new AtomicFile(new File(testAnnotationsPath + ".eval.tsv"))) {
+                try (Writer writer = new OutputStreamWriter(file.newOutputStream(), "UTF-8")) {
+                    writer.write(evaluator.report());
+                }
+                file.commit();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not evaluate " + testAnnotationsPath, e);
+        }
+    }
+
+    private void trainModel(Properties prop, String trainPath, String modelPath, String previousTrainedModelPath, String modelEmbeddingPath) {
         DependencyParser p = new DependencyParser(prop);
 
         // Argument 1 - Training Path
         // Argument 2 - Dev Path (can be null)
         // Argument 3 - Path where model is saved
         // Argument 4 - Path to embedding vectors (can be null)
-        p.train(trainPath, null, modelPath, embeddingPath, previousTrainedModelPath);
+        // Argument 5 - Path to a previously trained model to start from (optional)
+        // The model is written under a temporary name, so an interrupted training never leaves a partial model behind
+        try (RunReport.Stage stage = runReport.start("train", modelPath);
+             AtomicFile model = new AtomicFile(new File(modelPath))) {
+            stage.input(trainPath).output(modelPath);
+            String temporaryModelPath = model.getTemporaryFile().getPath();
+            if (previousTrainedModelPath == null) {
+                p.train(trainPath, null, temporaryModelPath, modelEmbeddingPath);
+            } else {
+                p.train(trainPath, null, temporaryModelPath, modelEmbeddingPath, previousTrainedModelPath);
+            }
+            model.commit();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write model " + modelPath, e);
+        }
+    }
 
+    private DependencyParser loadModel(String modelPath) {
         // Load a saved path
-        DependencyParser model = DependencyParser.loadFromModelFile(modelPath);
-
-        // Test model on test data, write annotations to testAnnotationsPath
-        return model.testCoNLL(testPath, testAnnotationsPath);
+        try (RunReport.Stage stage = runReport.start("load_model", modelPath)) {
+            stage.input(modelPath).sentences(0);
+            return DependencyParser.loadFromModelFile(modelPath);
+        }
     }
 
     public static void main(String[] args) {
         DependencyParserDriver driver = new DependencyParserDriver(args);
         Preprocessor preprocessor = new Preprocessor(driver.wsjSeedPath, driver.wsjTestPath, driver.brownCorpusBasePath, driver.execDir);
+        preprocessor.setWriteBinaryCorpora(driver.binaryCorpora);
+        preprocessor.setWriteLengthBuckets(driver.lengthBuckets);
+        preprocessor.setRunReport(driver.runReport);
+        preprocessor.setWsjSeedSetSizes(driver.indexedSizes("wsj"));
+        preprocessor.setBrownSelfTrainingSizes(driver.indexedSizes("brown"));
         preprocessor.preprocess();
+        driver.preprocessor = preprocessor;
+        driver.prepareEmbeddings();
         driver.process();
     }
 }
@@ -0,0 +1,215 @@
+package edu.utexas.nlp.hw3;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Word embeddings converted once from the text format into a compact binary file and memory mapped off-heap.
+ *
+ * Layout: magic, number of rows, dimension and matrix offset as ints, then every word as a length prefixed UTF-8
+ * string in row order, then the rows * dimension float matrix in little endian order. Only words occurring in the
+ * corpora (as is or lowercased) are kept, so every process mapping the file shares the same small set of pages.
+ */
+public class EmbeddingStore implements Closeable {
+    private static final int MAGIC = 0x454d4231; // "EMB1"
+    private static final int FORM_COLUMN = 1;
+
+    private final FileChannel channel;
+    private final Map<String, Integer> rows;
+    private final String[] words;
+    private final FloatBuffer matrix;
+    private final int dimension;
+
+    private EmbeddingStore(FileChannel channel, String[] words, FloatBuffer matrix, int dimension) {
+        this.channel = channel;
+        this.words = words;
+        this.matrix = matrix;
+        this.dimension = dimension;
+        this.rows = new HashMap<>(words.length * 2);
+        for (int i = 0; i < words.length; i++) {
+            rows.put(words[i], i);
+        }
+    }
+
+    /*
+     All word forms of the given CoNLL-X files, together with their lowercased versions which the parser falls back to.
+     */
+    public static Set<String> collectVocabulary(List<File> corpora) throws IOException {
+        Set<String> vocabulary = new HashSet<>();
+        for (File corpus : corpora) {
+            try (ConllxSentenceReader reader = new ConllxSentenceReader(corpus)) {
+                while (reader.next()) {
+                    byte[] buffer = reader.buffer();
+                    int end = reader.bufferStart() + reader.length();
+                    int lineStart = reader.bufferStart();
+                    while (lineStart < end) {
+                        int column = 0;
+                        int fieldStart = lineStart;
+                        int i = lineStart;
+                        while (i < end && buffer[i] != '\n') {
+                            if (buffer[i] == '\t') {
+                                if (column == FORM_COLUMN) {
+                                    break;
+                                }
+                                column++;
+                                fieldStart = i + 1;
+                            }
+                            i++;
+                        }
+                        if (column == FORM_COLUMN) {
+                            String word = new String(buffer, fieldStart, i - fieldStart, StandardCharsets.UTF_8);
+                            vocabulary.add(word);
+                            vocabulary.add(word.toLowerCase());
+                        }
+                        while (i < end && buffer[i] != '\n') {
+                            i++;
+                        }
+                        lineStart = i + 1;
+                    }
+                }
+            }
+        }
+        return vocabulary;
+    }
+
+    /*
+     Convert a text embedding file ("word v1 v2 ... vd" per line) into the binary format, keeping only the vocabulary.
+     */
+    public static void convert(File textFile, Set<String> vocabulary, File binaryFile) throws IOException {
+        List<String> keptWords = new ArrayList<>();
+        int dimension = -1;
+        File matrixFile = new File(binaryFile.getPath() + ".matrix");
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(textFile), StandardCharsets.UTF_8));
+             DataOutputStream matrixStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(matrixFile), 1 << 16))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] splits = line.trim().split("\\s+");
+                if (splits.length < 2 || !vocabulary.contains(splits[0])) {
+                    continue;
+                }
+                if (dimension < 0) {
+                    dimension = splits.length - 1;
+                } else if (splits.length - 1 != dimension) {
+                    throw new IOException("Embedding of " + splits[0] + " has " + (splits.length - 1) + " values instead of " + dimension);
+                }
+                keptWords.add(splits[0]);
+                for (int i = 1; i < splits.length; i++) {
+                    matrixStream.writeInt(Integer.reverseBytes(Float.floatToIntBits(Float.parseFloat(splits[i]))));
+                }
+            }
+        }
+
+        ByteArrayOutputStream wordBytes = new ByteArrayOutputStream();
+        DataOutputStream wordStream = new DataOutputStream(wordBytes);
+        for (String word : keptWords) {
+            byte[] encoded = word.getBytes(StandardCharsets.UTF_8);
+            wordStream.writeInt(encoded.length);
+            wordStream.write(encoded);
+        }
+        int matrixOffset = 16 + wordBytes.size();
+        matrixOffset += (4 - matrixOffset % 4) % 4; // Keep the floats aligned
+
+        try (AtomicFile file = new AtomicFile(binaryFile)) {
+            try (FileChannel out = file.newChannel();
+                 FileChannel matrix = FileChannel.open(matrixFile.toPath(), StandardOpenOption.READ)) {
+                ByteArrayOutputStream header = new ByteArrayOutputStream();
+                DataOutputStream headerStream = new DataOutputStream(header);
+                headerStream.writeInt(MAGIC);
+                headerStream.writeInt(keptWords.size());
+                headerStream.writeInt(Math.max(dimension, 0));
+                headerStream.writeInt(matrixOffset);
+                wordBytes.writeTo(headerStream);
+                while (header.size() < matrixOffset) {
+                    headerStream.writeByte(0);
+                }
+                ByteBuffer headerBuffer = ByteBuffer.wrap(header.toByteArray());
+                while (headerBuffer.hasRemaining()) {
+                    out.write(headerBuffer);
+                }
+                ConllxFiles.transferFully(matrix, 0, matrix.size(), out);
+            }
+            file.commit();
+        } finally {
+            if (!matrixFile.delete()) {
+                System.out.println(new Date().toString() + " Could not delete " + matrixFile);
+            }
+        }
+    }
+
+    public static EmbeddingStore open(File binaryFile) throws IOException {
+        FileChannel channel = FileChannel.open(binaryFile.toPath(), StandardOpenOption.READ);
+        try {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (mapped.getInt() != MAGIC) {
+                throw new IOException(binaryFile + " is not an embedding store");
+            }
+            int rowCount = mapped.getInt();
+            int dimension = mapped.getInt();
+            int matrixOffset = mapped.getInt();
+            String[] words = new String[rowCount];
+            for (int i = 0; i < rowCount; i++) {
+                byte[] encoded = new byte[mapped.getInt()];
+                mapped.get(encoded);
+                words[i] = new String(encoded, StandardCharsets.UTF_8);
+            }
+            mapped.position(matrixOffset);
+            FloatBuffer matrix = mapped.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            return new EmbeddingStore(channel, words, matrix, dimension);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public int size() {
+        return words.length;
+    }
+
+    public int dimension() {
+        return dimension;
+    }
+
+    /*
+     Row of the word in the matrix, or -1 if it has no embedding.
+     */
+    public int row(String word) {
+        Integer row = rows.get(word);
+        return row == null ? -1 : row;
+    }
+
+    public float get(int row, int column) {
+        return matrix.get(row * dimension + column);
+    }
+
+    /*
+     Write the store back in the text format read by DependencyParser.train.
+     */
+    public void writeText(File textFile) throws IOException {
+        try (AtomicFile file = new AtomicFile(textFile)) {
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(file.newOutputStream(), StandardCharsets.UTF_8), 1 << 16)) {
+                StringBuilder line = new StringBuilder();
+                for (int row = 0; row < words.length; row++) {
+                    line.setLength(0);
+                    line.append(words[row]);
+                    for (int column = 0; column < dimension; column++) {
+                        line.append(' ').append(get(row, column));
+                    }
+                    writer.write(line.append('\n').toString());
+                }
+            }
+            file.commit();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
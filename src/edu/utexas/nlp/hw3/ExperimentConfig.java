@@ -0,0 +1,177 @@
+package edu.utexas.nlp.hw3;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Experiment grid read from a properties file, and the planner expanding it into experiments.
+ *
+ * Keys, all optional:
+ *   wsj.sizes / brown.sizes           sentence counts of the incremental seed and self-training sets of each corpus
+ *   self_training.seed_size           seed set size of the vary_self_training_size sweeps
+ *   parser.<property>                 DependencyParser properties, such as parser.maxIter
+ *   grid.seed_sets / grid.test_sets   corpora crossed with grid.modes (vary_seed_set_size, vary_self_training_size)
+ *   experiments                       further experiments separated by ';', each written like the command line:
+ *                                     <seed_corpus_name> <test_corpus_name> <single/batch> ... [--options]
+ * Missing keys keep the defaults of the original sweeps.
+ */
+public class ExperimentConfig {
+    private static final List<Integer> DEFAULT_WSJ_SIZES = Collections.unmodifiableList(Arrays.asList(1000, 2000, 3000, 4000, 5000, 7000, 10000, 12000, 14000));
+    private static final List<Integer> DEFAULT_BROWN_SIZES = Collections.unmodifiableList(Arrays.asList(1000, 2000, 3000, 4000, 5000, 7000, 10000, 13000, 17000, 21000));
+    private static final int DEFAULT_SELF_TRAINING_SEED_SIZE = 10000;
+    private static final int DEFAULT_MAX_ITER = 200;
+
+    private final Map<String, List<Integer>> sizes = new HashMap<>(); // corpus -> sizes of its incremental sets
+    private int selfTrainingSeedSize = DEFAULT_SELF_TRAINING_SEED_SIZE;
+    private final Properties parserProperties = new Properties();
+    private final List<String[]> experiments = new ArrayList<>();
+
+    public ExperimentConfig() {
+        sizes.put("wsj", DEFAULT_WSJ_SIZES);
+        sizes.put("brown", DEFAULT_BROWN_SIZES);
+        parserProperties.setProperty("maxIter", String.valueOf(DEFAULT_MAX_ITER));
+    }
+
+    public static ExperimentConfig load(File file) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        ExperimentConfig config = new ExperimentConfig();
+        for (String corpus : new String[]{"wsj", "brown"}) {
+            if (properties.containsKey(corpus + ".sizes")) {
+                config.sizes.put(corpus, parseSizes(properties.getProperty(corpus + ".sizes")));
+            }
+        }
+        config.selfTrainingSeedSize = Integer.parseInt(properties.getProperty("self_training.seed_size",
+                String.valueOf(DEFAULT_SELF_TRAINING_SEED_SIZE)).trim());
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith("parser.")) {
+                config.parserProperties.setProperty(name.substring("parser.".length()), properties.getProperty(name).trim());
+            }
+        }
+
+        List<String> modes = parseList(properties.getProperty("grid.modes", ""));
+        for (String seedSet : parseList(properties.getProperty("grid.seed_sets", ""))) {
+            for (String testSet : parseList(properties.getProperty("grid.test_sets", ""))) {
+                for (String mode : modes) {
+                    config.experiments.add(new String[]{seedSet, testSet, "batch", mode});
+                }
+            }
+        }
+        for (String experiment : properties.getProperty("experiments", "").split(";")) {
+            if (!experiment.trim().isEmpty()) {
+                config.experiments.add(experiment.trim().split("\\s+"));
+            }
+        }
+        return config;
+    }
+
+    private static List<String> parseList(String value) {
+        List<String> list = new ArrayList<>();
+        for (String item : value.split(",")) {
+            if (!item.trim().isEmpty()) {
+                list.add(item.trim());
+            }
+        }
+        return list;
+    }
+
+    /*
+     Sorted distinct sizes.
+     */
+    private static List<Integer> parseSizes(String value) {
+        TreeSet<Integer> parsed = new TreeSet<>();
+        for (String size : parseList(value)) {
+            parsed.add(Integer.parseInt(size));
+        }
+        return Collections.unmodifiableList(new ArrayList<>(parsed));
+    }
+
+    /*
+     Sizes of the incremental sets of the corpus (wsj or brown).
+     */
+    public List<Integer> sizes(String corpus) {
+        return sizes.get(corpus.equalsIgnoreCase("wsj") ? "wsj" : "brown");
+    }
+
+    public int getSelfTrainingSeedSize() {
+        return selfTrainingSeedSize;
+    }
+
+    public int getMaxIter() {
+        return Integer.parseInt(parserProperties.getProperty("maxIter"));
+    }
+
+    /*
+     Parser properties of the grid with the given maxIter.
+     */
+    public Properties parserProperties(int maxIter) {
+        Properties properties = new Properties();
+        properties.putAll(parserProperties);
+        properties.setProperty("maxIter", String.valueOf(maxIter));
+        return properties;
+    }
+
+    /*
+     The experiments of the grid in the order given, each one only once. Experiments are compared by their canonical
+     arguments: lower case names, plain sizes and sorted options.
+     */
+    public List<String[]> plan() {
+        Map<String, String[]> planned = new LinkedHashMap<>();
+        for (String[] experiment : experiments) {
+            String[] canonical = canonical(experiment);
+            planned.putIfAbsent(String.join(" ", canonical), canonical);
+        }
+        return new ArrayList<>(planned.values());
+    }
+
+    private static String[] canonical(String[] experiment) {
+        List<String> positional = new ArrayList<>();
+        TreeSet<String> options = new TreeSet<>();
+        for (String arg : experiment) {
+            if (arg.startsWith("--")) {
+                options.add(arg);
+            } else if (arg.matches("\\d+")) {
+                positional.add(String.valueOf(Integer.parseInt(arg)));
+            } else {
+                positional.add(arg.toLowerCase());
+            }
+        }
+        positional.addAll(options);
+        return positional.toArray(new String[0]);
+    }
+
+    /*
+     Sizes of the corpus (wsj or brown) the experiments read incremental sets of, so only those are indexed.
+     Experiments are given as <seed_corpus_name> <test_corpus_name> <single/batch> ... without options.
+     */
+    public List<Integer> requiredSizes(String corpus, List<String[]> experiments) {
+        TreeSet<Integer> required = new TreeSet<>();
+        for (String[] experiment : experiments) {
+            String seedSet = experiment[0];
+            String testSet = experiment[1];
+            if (experiment[2].equalsIgnoreCase("single")) {
+                if (seedSet.equalsIgnoreCase(corpus) && !experiment[3].equalsIgnoreCase("full")) {
+                    required.add(Integer.parseInt(experiment[3]));
+                }
+                if (testSet.equalsIgnoreCase(corpus) && experiment.length >= 5 && !experiment[4].equalsIgnoreCase("full")) {
+                    required.add(Integer.parseInt(experiment[4]));
+                }
+            } else if (experiment[3].equalsIgnoreCase("vary_seed_set_size")) {
+                if (seedSet.equalsIgnoreCase(corpus)) {
+                    required.addAll(sizes(seedSet));
+                }
+            } else {
+                if (seedSet.equalsIgnoreCase(corpus)) {
+                    required.add(selfTrainingSeedSize);
+                }
+                if (testSet.equalsIgnoreCase(corpus)) {
+                    required.addAll(sizes(testSet));
+                }
+            }
+        }
+        return new ArrayList<>(required);
+    }
+}
@@ -0,0 +1,178 @@
+package edu.utexas.nlp.hw3;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs experiment steps (train, test, concatenate) as a DAG on a bounded thread pool.
+ *
+ * Every task declares the files it reads and the files it writes. A task only starts once all tasks producing its
+ * input files have finished, so independent seed sizes and baselines run concurrently while each chain of
+ * train -> annotate -> concatenate -> retrain keeps its order.
+ *
+ * Tasks may report result lines, such as their LAS scores, which are printed once the task is done. With a journal
+ * every finished task is recorded together with its results, and when resuming a task whose journal entry is still
+ * valid is not run again; its recorded results are printed instead.
+ */
+public class ExperimentScheduler {
+    // Rough heap needed by a single DependencyParser training run with embeddings loaded
+    private static final long MEMORY_PER_TASK = 2L * 1024 * 1024 * 1024;
+
+    private final int parallelism;
+    private final List<Task> tasks = new ArrayList<>();
+    private final Map<String, Task> producers = new HashMap<>(); // output file -> task writing it
+    private Journal journal;
+    private boolean resume;
+    private String journalContext = "";
+
+    /*
+     A task reporting result lines.
+     */
+    public interface Step {
+        List<String> run();
+    }
+
+    private static class Task {
+        final String name;
+        final Step action;
+        final List<String> files = new ArrayList<>(); // Inputs and outputs
+        final List<Task> dependents = new ArrayList<>();
+        int pendingDependencies;
+        boolean failed;
+
+        Task(String name, Step action) {
+            this.name = name;
+            this.action = action;
+        }
+    }
+
+    public ExperimentScheduler() {
+        this(defaultParallelism());
+    }
+
+    public ExperimentScheduler(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /*
+     Number of tasks which fit on this machine at once, bounded by both the cores and the maximum heap.
+     */
+    public static int defaultParallelism() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        long memoryBound = Runtime.getRuntime().maxMemory() / MEMORY_PER_TASK;
+        return (int) Math.max(1, Math.min(cores, memoryBound));
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /*
+     Record finished tasks in the journal and, when resuming, skip those already recorded. The context is part of every
+     task's journal key, so tasks run with other settings are told apart.
+     */
+    public void setJournal(Journal journal, boolean resume, String context) {
+        this.journal = journal;
+        this.resume = resume;
+        this.journalContext = context;
+    }
+
+    /*
+     Add a task. Tasks producing the given inputs have to be added before it.
+     */
+    public void addTask(String name, List<String> inputs, List<String> outputs, Runnable action) {
+        addTask(name, inputs, outputs, () -> {
+            action.run();
+            return Collections.emptyList();
+        });
+    }
+
+    public void addTask(String name, List<String> inputs, List<String> outputs, Step action) {
+        Task task = new Task(name, action);
+        task.files.addAll(inputs);
+        task.files.addAll(outputs);
+        Set<Task> dependencies = new HashSet<>();
+        for (String input : inputs) {
+            Task producer = producers.get(input);
+            if (producer != null) {
+                dependencies.add(producer);
+            }
+        }
+        for (Task dependency : dependencies) {
+            dependency.dependents.add(task);
+        }
+        task.pendingDependencies = dependencies.size();
+        for (String output : outputs) {
+            if (producers.containsKey(output)) {
+                throw new IllegalArgumentException("File " + output + " is written by both " + producers.get(output).name + " and " + name);
+            }
+            producers.put(output, task);
+        }
+        tasks.add(task);
+    }
+
+    /*
+     Run all tasks and wait for them to finish. Tasks depending on a failed task are skipped.
+     */
+    public void run() throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        CountDownLatch remaining = new CountDownLatch(tasks.size());
+        try {
+            synchronized (this) {
+                for (Task task : tasks) {
+                    if (task.pendingDependencies == 0) {
+                        submit(executor, task, remaining);
+                    }
+                }
+            }
+            remaining.await();
+        } finally {
+            executor.shutdown();
+        }
+        tasks.clear();
+        producers.clear();
+    }
+
+    private void submit(ExecutorService executor, Task task, CountDownLatch remaining) {
+        executor.execute(() -> {
+            boolean failed = true; // Until the task is skipped or has run, so even an Error counts as a failure
+            try {
+                if (task.failed) {
+                    System.out.println(new Date().toString() + " Skipping " + task.name + " since a task it depends on failed");
+                } else {
+                    runTask(task);
+                    failed = false;
+                }
+            } catch (Throwable e) { // An OutOfMemoryError of one training must not hang the whole run
+                e.printStackTrace();
+            } finally {
+                synchronized (this) {
+                    for (Task dependent : task.dependents) {
+                        dependent.failed |= failed;
+                        if (--dependent.pendingDependencies == 0) {
+                            submit(executor, dependent, remaining);
+                        }
+                    }
+                }
+                remaining.countDown();
+            }
+        });
+    }
+
+    private void runTask(Task task) throws IOException {
+        String key = task.name + "\t" + journalContext + "\t" + String.join("\t", task.files);
+        List<String> result = resume && journal != null ? journal.finishedResult(key) : null;
+        if (result != null) {
+            System.out.println(new Date().toString() + " Resuming after finished step " + task.name);
+        } else {
+            result = task.action.run();
+            if (journal != null) {
+                journal.record(key, task.files, result);
+            }
+        }
+        for (String line : result) {
+            System.out.println(new Date().toString() + " " + line);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package edu.utexas.nlp.hw3;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Spool directory from which a long running process takes experiment specs and runs them on a worker pool.
+ *
+ * A spec is a file <name>.spec holding command line arguments, separated by whitespace, with # starting a comment line.
+ * Every process serving the spool owns a directory <owner>.claims in it, and holds a lock on the file "lock" in there
+ * for as long as it runs. A spec is claimed by moving it to <owner>.claims/<name>.running, so several processes may
+ * share a spool. When its run finishes it is moved back as <name>.done, or as <name>.failed with the error written to
+ * <name>.error. The specs claimed by a process which died are queued again by any process finding its lock free;
+ * those of a live process are left to it. A file named "shutdown" stops the process once the running specs are done.
+ */
+public class ExperimentSpool {
+    private static final long POLL_INTERVAL_MILLIS = 1000;
+    private static final String SHUTDOWN_FILE = "shutdown";
+    private static final String CLAIMS = ".claims";
+    private static final String LOCK_FILE = "lock";
+
+    private final File directory;
+    private final int workers;
+
+    public interface Runner {
+        void run(String name, String[] args) throws Exception;
+    }
+
+    public ExperimentSpool(File directory, int workers) {
+        this.directory = directory;
+        this.workers = Math.max(1, workers);
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    /*
+     Run every spec dropped into the spool, oldest first, until the shutdown file appears.
+     */
+    public void serve(Runner runner) throws IOException, InterruptedException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create spool directory " + directory);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(workers, runnable -> new Thread(runnable, "experiment"));
+        Semaphore idleWorkers = new Semaphore(workers);
+        File shutdown = new File(directory, SHUTDOWN_FILE);
+        String owner = ManagementFactory.getRuntimeMXBean().getName().replaceAll("[^A-Za-z0-9@._-]", "_") + "-" + System.currentTimeMillis();
+        // Locked before it gets its claims name, so no other process takes a starting one for dead
+        File ownDirectory = new File(directory, owner + ".starting");
+        if (!ownDirectory.mkdir()) {
+            throw new IOException("Could not create " + ownDirectory);
+        }
+        FileChannel lockChannel = null;
+        try {
+            lockChannel = FileChannel.open(new File(ownDirectory, LOCK_FILE).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            lockChannel.lock();
+            File claims = new File(directory, owner + CLAIMS);
+            if (!ownDirectory.renameTo(claims)) {
+                throw new IOException("Could not rename " + ownDirectory + " to " + claims);
+            }
+            ownDirectory = claims;
+
+            while (!shutdown.exists()) {
+                requeueDeadClaims(claims);
+                boolean claimed = false;
+                for (File spec : list(directory, ".spec")) {
+                    if (!idleWorkers.tryAcquire()) {
+                        break; // Leave the rest in the spool for other processes or later
+                    }
+                    File running = move(spec, claims, ".spec", ".running");
+                    if (running == null) {
+                        idleWorkers.release(); // Claimed by another process
+                        continue;
+                    }
+                    claimed = true;
+                    executor.submit(() -> {
+                        try {
+                            run(runner, running);
+                        } finally {
+                            idleWorkers.release();
+                        }
+                    });
+                }
+                if (!claimed) {
+                    Thread.sleep(POLL_INTERVAL_MILLIS);
+                }
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            deleteClaims(ownDirectory); // Still locked, so nobody requeues from it meanwhile
+            if (lockChannel != null) {
+                lockChannel.close();
+            }
+        }
+        if (!shutdown.delete()) {
+            System.out.println(new Date().toString() + " Could not delete " + shutdown);
+        }
+    }
+
+    private void run(Runner runner, File running) {
+        String name = running.getName().substring(0, running.getName().length() - ".running".length());
+        try {
+            runner.run(name, readArgs(running));
+            move(running, directory, ".running", ".done");
+        } catch (Throwable e) {
+            e.printStackTrace();
+            StringWriter trace = new StringWriter();
+            e.printStackTrace(new PrintWriter(trace));
+            try {
+                Files.write(new File(directory, name + ".error").toPath(), trace.toString().getBytes(StandardCharsets.UTF_8));
+            } catch (IOException writeError) {
+                writeError.printStackTrace();
+            }
+            move(running, directory, ".running", ".failed");
+        }
+    }
+
+    /*
+     Move the specs claimed by processes which died back into the spool, and remove their claims directories. A claims
+     directory whose lock is held belongs to a live process and is left alone.
+     */
+    private void requeueDeadClaims(File ownClaims) {
+        File[] claimsDirectories = directory.listFiles((dir, name) -> name.endsWith(CLAIMS));
+        for (File claims : claimsDirectories == null ? new File[0] : claimsDirectories) {
+            if (claims.equals(ownClaims)) {
+                continue;
+            }
+            try (FileChannel channel = FileChannel.open(new File(claims, LOCK_FILE).toPath(), StandardOpenOption.WRITE);
+                 FileLock lock = channel.tryLock()) {
+                if (lock == null || !claims.isDirectory()) {
+                    continue;
+                }
+                for (File running : list(claims, ".running")) {
+                    System.out.println(new Date().toString() + " Queueing " + running.getName() + " of stopped server "
+                            + claims.getName() + " again");
+                    move(running, directory, ".running", ".spec");
+                }
+                deleteClaims(claims);
+            } catch (NoSuchFileException e) {
+                // Removed by its owner on shutdown, or requeued by another process
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.out.println(new Date().toString() + " Could not check the claims of " + claims);
+            }
+        }
+    }
+
+    private static void deleteClaims(File claims) {
+        File lock = new File(claims, LOCK_FILE);
+        if (lock.exists() && !lock.delete() || !claims.delete()) {
+            System.out.println(new Date().toString() + " Could not delete " + claims);
+        }
+    }
+
+    private static String[] readArgs(File spec) throws IOException {
+        List<String> args = new ArrayList<>();
+        for (String line : Files.readAllLines(spec.toPath(), StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            args.addAll(Arrays.asList(line.split("\\s+")));
+        }
+        return args.toArray(new String[0]);
+    }
+
+    /*
+     Files in the directory with the extension, oldest first.
+     */
+    private static List<File> list(File directory, String extension) {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(extension));
+        List<File> sorted = new ArrayList<>(Arrays.asList(files == null ? new File[0] : files));
+        sorted.sort(Comparator.comparingLong(File::lastModified).thenComparing(File::getName));
+        return sorted;
+    }
+
+    /*
+     Move file into the directory, swapping its extension, and return the moved file, or null if it is gone.
+     */
+    private static File move(File file, File directory, String from, String to) {
+        String name = file.getName();
+        File moved = new File(directory, name.substring(0, name.length() - from.length()) + to);
+        return file.renameTo(moved) ? moved : null;
+    }
+}
@@ -0,0 +1,124 @@
+package edu.utexas.nlp.hw3;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Append-only log of the finished steps of a run, so an interrupted sweep can resume where it stopped.
+ *
+ * Every line records a step's key, the result lines it reported (its LAS scores) and the length and SHA-256 of each
+ * of its input and output files. A line is forced to disk before the step counts as finished, and a last line cut
+ * short by a crash is ignored. A step is finished when the journal holds it and all its files still have the recorded
+ * contents; if an input changed or an output got lost the step has to run again.
+ */
+public class Journal {
+    private static final String MISSING = "-";
+
+    private final File file;
+    private final Map<String, String[]> entries = new HashMap<>(); // step key -> fields of its latest line
+    private final Map<String, String> digests = new HashMap<>(); // path, length and modification time -> SHA-256
+
+    public Journal(File file) throws IOException {
+        this.file = file;
+        if (!file.isFile()) {
+            return;
+        }
+        String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        int end = content.lastIndexOf('\n') + 1; // Anything after the last newline is an incomplete line
+        for (String line : content.substring(0, end).split("\n")) {
+            String[] fields = line.split("\t", -1);
+            if (fields.length >= 2 && (fields.length - 2) % 3 == 0) {
+                entries.put(unescape(fields[0]), fields);
+            }
+        }
+    }
+
+    /*
+     Result lines of the step if it finished with all its files intact, otherwise null.
+     */
+    public synchronized List<String> finishedResult(String key) throws IOException {
+        String[] fields = entries.get(key);
+        if (fields == null) {
+            return null;
+        }
+        for (int i = 2; i < fields.length; i += 3) {
+            File recorded = new File(unescape(fields[i]));
+            if (fields[i + 1].equals(MISSING) || recorded.length() != Long.parseLong(fields[i + 1])
+                    || !fields[i + 2].equals(digest(recorded))) {
+                return null;
+            }
+        }
+        List<String> result = new ArrayList<>();
+        for (String line : unescape(fields[1]).split("\n")) {
+            if (!line.isEmpty()) {
+                result.add(line);
+            }
+        }
+        return result;
+    }
+
+    /*
+     Record the step as finished with the given result and the current contents of its files.
+     */
+    public synchronized void record(String key, List<String> files, List<String> result) throws IOException {
+        StringBuilder line = new StringBuilder(escape(key)).append('\t').append(escape(String.join("\n", result)));
+        for (String path : new LinkedHashSet<>(files)) {
+            File recorded = new File(path);
+            line.append('\t').append(escape(path));
+            if (recorded.isFile()) {
+                line.append('\t').append(recorded.length()).append('\t').append(digest(recorded));
+            } else {
+                line.append('\t').append(MISSING).append('\t').append(MISSING);
+            }
+        }
+        line.append('\n');
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            ByteBuffer buffer = ByteBuffer.wrap(line.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        entries.put(key, line.substring(0, line.length() - 1).split("\t", -1));
+    }
+
+    /*
+     SHA-256 of the file, computed once per version of the file.
+     */
+    private String digest(File recorded) throws IOException {
+        if (!recorded.isFile()) {
+            return MISSING;
+        }
+        String version = recorded.getPath() + "\t" + recorded.length() + "\t" + recorded.lastModified();
+        String digest = digests.get(version);
+        if (digest == null) {
+            digest = ConllxFiles.sha256(recorded);
+            digests.put(version, digest);
+        }
+        return digest;
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+    }
+
+    private static String unescape(String value) {
+        StringBuilder unescaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                unescaped.append(next == 't' ? '\t' : next == 'n' ? '\n' : next);
+            } else {
+                unescaped.append(c);
+            }
+        }
+        return unescaped.toString();
+    }
+}
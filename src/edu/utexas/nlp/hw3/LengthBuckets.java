@@ -0,0 +1,168 @@
+package edu.utexas.nlp.hw3;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Copy of a CoNLL-X file with its sentences ordered by length, so work units cut from it hold sentences of similar
+ * length, together with the permutation which puts results computed on the copy back into the original order.
+ *
+ * For <name>.conllx the copy is <name>.bucketed.conllx and the permutation <name>.bucketed.conllx.perm. Sentences are
+ * grouped into buckets of BUCKET_WIDTH token counts, shortest first, keeping the original order within a bucket. The
+ * permutation sidecar, big endian: magic, sentence count, length and modification time of the original file, then for
+ * every sentence of the copy the number of the original sentence as an int. It is memory-mapped when read.
+ */
+public class LengthBuckets {
+    private static final int MAGIC = 0x43535052; // "CSPR"
+    private static final int HEADER_BYTES = 24;
+    private static final int BUCKET_WIDTH = 5;
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+
+    private final File original;
+    private final File bucketed;
+    private final IntBuffer originalSentences; // position in the copy -> original sentence number
+
+    private LengthBuckets(File original, File bucketed, IntBuffer originalSentences) {
+        this.original = original;
+        this.bucketed = bucketed;
+        this.originalSentences = originalSentences;
+    }
+
+    public static File bucketedPath(File original) {
+        String path = original.getPath();
+        return new File((path.endsWith(".conllx") ? path.substring(0, path.length() - ".conllx".length()) : path) + ".bucketed.conllx");
+    }
+
+    private static File permutationPath(File bucketed) {
+        return new File(bucketed.getPath() + ".perm");
+    }
+
+    /*
+     The length-bucketed copy of the file, written with its permutation unless a current one exists.
+     */
+    public static LengthBuckets of(File original) throws IOException {
+        File bucketed = bucketedPath(original);
+        LengthBuckets buckets = openIfCurrent(original, bucketed);
+        return buckets != null ? buckets : write(original, bucketed);
+    }
+
+    private static LengthBuckets openIfCurrent(File original, File bucketed) throws IOException {
+        File permutation = permutationPath(bucketed);
+        if (!bucketed.isFile() || !permutation.isFile() || permutation.length() < HEADER_BYTES
+                || bucketed.lastModified() < original.lastModified()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(permutation.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int sentenceCount = mapped.getInt(4);
+            if (mapped.getInt(0) != MAGIC || mapped.getLong(8) != original.length() || mapped.getLong(16) != original.lastModified()
+                    || channel.size() != HEADER_BYTES + 4L * sentenceCount) {
+                return null;
+            }
+            mapped.position(HEADER_BYTES);
+            return new LengthBuckets(original, bucketed, mapped.slice().asIntBuffer());
+        }
+    }
+
+    private static LengthBuckets write(File original, File bucketed) throws IOException {
+        SentenceIndex sentenceIndex = SentenceIndex.of(original);
+        int sentenceCount = sentenceIndex.sentenceCount();
+
+        // Counting sort by bucket, stable so the original order is kept within a bucket
+        int[] bucketOf = new int[sentenceCount];
+        int buckets = 0;
+        for (int k = 0; k < sentenceCount; k++) {
+            bucketOf[k] = sentenceIndex.tokenCount(k) / BUCKET_WIDTH;
+            buckets = Math.max(buckets, bucketOf[k] + 1);
+        }
+        int[] bucketStart = new int[buckets + 1];
+        for (int k = 0; k < sentenceCount; k++) {
+            bucketStart[bucketOf[k] + 1]++;
+        }
+        for (int b = 0; b < buckets; b++) {
+            bucketStart[b + 1] += bucketStart[b];
+        }
+        int[] originalSentences = new int[sentenceCount];
+        for (int k = 0; k < sentenceCount; k++) {
+            originalSentences[bucketStart[bucketOf[k]]++] = k;
+        }
+
+        try (AtomicFile bucketedFile = new AtomicFile(bucketed); AtomicFile permutationFile = new AtomicFile(permutationPath(bucketed))) {
+            try (FileChannel in = FileChannel.open(original.toPath(), StandardOpenOption.READ); FileChannel out = bucketedFile.newChannel()) {
+                copyInOrder(sentenceIndex, in, originalSentences, out);
+            }
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(permutationFile.newOutputStream(), OUTPUT_BUFFER_SIZE))) {
+                output.writeInt(MAGIC);
+                output.writeInt(sentenceCount);
+                output.writeLong(original.length());
+                output.writeLong(original.lastModified());
+                for (int sentence : originalSentences) {
+                    output.writeInt(sentence);
+                }
+            }
+            bucketedFile.commit();
+            permutationFile.commit();
+        }
+        return new LengthBuckets(original, bucketed, IntBuffer.wrap(originalSentences));
+    }
+
+    /*
+     Write sentence order[i] of the indexed file as the i-th sentence of out, copying runs of consecutive sentences as
+     one range.
+     */
+    private static void copyInOrder(SentenceIndex sentenceIndex, FileChannel in, int[] order, FileChannel out) throws IOException {
+        int i = 0;
+        while (i < order.length) {
+            int runEnd = i + 1;
+            while (runEnd < order.length && order[runEnd] == order[runEnd - 1] + 1) {
+                runEnd++;
+            }
+            sentenceIndex.transferTo(in, order[i], order[runEnd - 1] + 1, out);
+            i = runEnd;
+        }
+    }
+
+    public File getOriginalFile() {
+        return original;
+    }
+
+    public File getBucketedFile() {
+        return bucketed;
+    }
+
+    public int sentenceCount() {
+        return originalSentences.limit();
+    }
+
+    /*
+     Number of the original sentence at the given position of the bucketed copy.
+     */
+    public int originalSentence(int position) {
+        return originalSentences.get(position);
+    }
+
+    /*
+     Write the sentences of results, which correspond one to one to the sentences of the bucketed copy (such as its
+     annotations), to destination in the order of the original file.
+     */
+    public void restore(File results, File destination) throws IOException {
+        SentenceIndex resultIndex = SentenceIndex.build(results);
+        int sentenceCount = sentenceCount();
+        if (resultIndex.sentenceCount() != sentenceCount) {
+            throw new IOException(results + " has " + resultIndex.sentenceCount() + " sentences instead of the " + sentenceCount + " of " + bucketed);
+        }
+        int[] positions = new int[sentenceCount]; // original sentence number -> position in the copy
+        for (int position = 0; position < sentenceCount; position++) {
+            positions[originalSentence(position)] = position;
+        }
+        try (AtomicFile file = new AtomicFile(destination)) {
+            try (FileChannel in = FileChannel.open(results.toPath(), StandardOpenOption.READ); FileChannel out = file.newChannel()) {
+                copyInOrder(resultIndex, in, positions, out);
+            }
+            file.commit();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package edu.utexas.nlp.hw3;
+
+import java.util.Arrays;
+
+/**
+ * Set of long values in a single open addressing table with linear probing, so millions of fingerprints cost eight
+ * bytes each instead of a boxed Long and a map entry. The table doubles whenever it gets half full.
+ */
+public class LongOpenHashSet {
+    private static final long EMPTY = 0; // Marks a free slot; the value 0 itself is tracked separately
+
+    private long[] table;
+    private int size;
+    private boolean containsZero;
+
+    public LongOpenHashSet() {
+        this(16);
+    }
+
+    public LongOpenHashSet(int expectedSize) {
+        table = new long[Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1];
+    }
+
+    /*
+     Add the value and return whether it was new.
+     */
+    public boolean add(long value) {
+        if (value == EMPTY) {
+            if (containsZero) {
+                return false;
+            }
+            containsZero = true;
+            size++;
+            return true;
+        }
+        int slot = slot(value, table.length);
+        while (table[slot] != EMPTY) {
+            if (table[slot] == value) {
+                return false;
+            }
+            slot = (slot + 1) & (table.length - 1);
+        }
+        table[slot] = value;
+        if (++size * 2 > table.length) {
+            resize(table.length * 2);
+        }
+        return true;
+    }
+
+    public boolean contains(long value) {
+        if (value == EMPTY) {
+            return containsZero;
+        }
+        int slot = slot(value, table.length);
+        while (table[slot] != EMPTY) {
+            if (table[slot] == value) {
+                return true;
+            }
+            slot = (slot + 1) & (table.length - 1);
+        }
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(table, EMPTY);
+        size = 0;
+        containsZero = false;
+    }
+
+    private void resize(int capacity) {
+        long[] old = table;
+        table = new long[capacity];
+        for (long value : old) {
+            if (value != EMPTY) {
+                int slot = slot(value, capacity);
+                while (table[slot] != EMPTY) {
+                    slot = (slot + 1) & (capacity - 1);
+                }
+                table[slot] = value;
+            }
+        }
+    }
+
+    /*
+     Home slot of the value: the high bits of a multiplicative hash, so fingerprints differing only in their high bits
+     spread as well.
+     */
+    private static int slot(long value, int capacity) {
+        return (int) ((value * 0x9E3779B97F4A7C15L) >>> (64 - Integer.numberOfTrailingZeros(capacity)));
+    }
+}
@@ -0,0 +1,215 @@
+package edu.utexas.nlp.hw3;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Content addressed cache of trained models and test set annotations.
+ *
+ * A model is keyed by the hash of its training data, embeddings, previous model and parser properties; an
+ * annotation by its model key and the hash of the test set. Entries live in one directory each below the cache
+ * directory and are evicted least recently used first once their total size exceeds the disk budget. Entries being
+ * restored or stored are never evicted, nor is the entry whose store triggered the eviction.
+ */
+public class ModelCache {
+    private static final String MODEL_FILE = "model";
+    private static final String ANNOTATIONS_FILE = "annotations.conllx";
+    private static final String SCORE_FILE = "las_score";
+
+    private final File directory;
+    private final long diskBudget;
+    private final Map<String, Object> locks = new ConcurrentHashMap<>();
+    private final Map<String, String> fileDigests = new ConcurrentHashMap<>(); // path|size|mtime -> content hash
+    private final Map<String, Integer> inUse = new HashMap<>(); // key -> restores and stores running, guarded by this
+
+    public ModelCache(File directory, long diskBudget) {
+        this.directory = directory;
+        this.diskBudget = diskBudget;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            System.out.println(new Date().toString() + " Could not create model cache directory " + directory);
+        }
+    }
+
+    public String modelKey(String trainPath, String embeddingPath, String previousModelPath, Properties properties) throws IOException {
+        StringBuilder key = new StringBuilder("model\n");
+        key.append(fileDigest(trainPath)).append('\n');
+        key.append(embeddingPath == null ? "none" : fileDigest(embeddingPath)).append('\n');
+        key.append(previousModelPath == null ? "none" : fileDigest(previousModelPath)).append('\n');
+        for (String name : new TreeSet<>(properties.stringPropertyNames())) {
+            key.append(name).append('=').append(properties.getProperty(name)).append('\n');
+        }
+        return digest(key.toString());
+    }
+
+    public String annotationKey(String modelKey, String testPath) throws IOException {
+        return digest("annotations\n" + modelKey + '\n' + fileDigest(testPath));
+    }
+
+    /*
+     Lock object shared by everyone working on the same key, so identical jobs running concurrently are only done once.
+     */
+    public Object lock(String key) {
+        return locks.computeIfAbsent(key, k -> new Object());
+    }
+
+    /*
+     Copy the cached model into modelPath. Returns false on a cache miss.
+     */
+    public boolean restoreModel(String key, String modelPath) throws IOException {
+        File entry = new File(directory, key);
+        File model = new File(entry, MODEL_FILE);
+        use(key);
+        try {
+            if (!model.isFile()) {
+                return false;
+            }
+            AtomicFile.copy(model, new File(modelPath));
+            touch(entry);
+            return true;
+        } finally {
+            release(key);
+        }
+    }
+
+    public void storeModel(String key, String modelPath) throws IOException {
+        store(key, Collections.singletonMap(MODEL_FILE, Paths.get(modelPath)), null);
+    }
+
+    /*
+     Copy the cached annotations into annotationsPath and return their LAS score, or null on a cache miss.
+     */
+    public Double restoreAnnotations(String key, String annotationsPath) throws IOException {
+        File entry = new File(directory, key);
+        File annotations = new File(entry, ANNOTATIONS_FILE);
+        File score = new File(entry, SCORE_FILE);
+        use(key);
+        try {
+            if (!annotations.isFile() || !score.isFile()) {
+                return null;
+            }
+            AtomicFile.copy(annotations, new File(annotationsPath));
+            touch(entry);
+            return Double.parseDouble(new String(Files.readAllBytes(score.toPath()), StandardCharsets.UTF_8).trim());
+        } finally {
+            release(key);
+        }
+    }
+
+    public void storeAnnotations(String key, String annotationsPath, double lasScore) throws IOException {
+        store(key, Collections.singletonMap(ANNOTATIONS_FILE, Paths.get(annotationsPath)), String.valueOf(lasScore));
+    }
+
+    /*
+     Write the entry into a temporary directory first so a crash never leaves a half written entry behind.
+     */
+    private void store(String key, Map<String, Path> files, String score) throws IOException {
+        File entry = new File(directory, key);
+        Path temporary = Files.createTempDirectory(directory.toPath(), key + ".tmp");
+        for (Map.Entry<String, Path> file : files.entrySet()) {
+            Files.copy(file.getValue(), temporary.resolve(file.getKey()));
+        }
+        if (score != null) {
+            Files.write(temporary.resolve(SCORE_FILE), score.getBytes(StandardCharsets.UTF_8));
+        }
+        use(key);
+        try {
+            if (entry.exists()) {
+                deleteRecursively(entry);
+            }
+            Files.move(temporary, entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            evict();
+        } finally {
+            release(key);
+        }
+    }
+
+    /*
+     Mark the entry as being copied from or into, so eviction leaves it alone. Eviction holds the same monitor, so a
+     restore either marks the entry before an eviction starts or finds it gone afterwards.
+     */
+    private synchronized void use(String key) {
+        inUse.merge(key, 1, Integer::sum);
+    }
+
+    private synchronized void release(String key) {
+        inUse.computeIfPresent(key, (k, count) -> count == 1 ? null : count - 1);
+    }
+
+    /*
+     Delete least recently used entries until the cache fits into the disk budget, skipping those in use. The access
+     times are read once up front, since other threads touch entries meanwhile.
+     */
+    private synchronized void evict() {
+        File[] entries = directory.listFiles(file -> file.isDirectory() && !file.getName().contains(".tmp"));
+        if (entries == null) {
+            return;
+        }
+        long total = 0;
+        Map<File, Long> sizes = new HashMap<>();
+        Map<File, Long> lastUsed = new HashMap<>();
+        for (File entry : entries) {
+            lastUsed.put(entry, entry.lastModified());
+            long size = 0;
+            File[] files = entry.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    size += file.length();
+                }
+            }
+            sizes.put(entry, size);
+            total += size;
+        }
+        Arrays.sort(entries, Comparator.comparingLong(lastUsed::get));
+        for (File entry : entries) {
+            if (total <= diskBudget) {
+                break;
+            }
+            if (inUse.containsKey(entry.getName())) {
+                continue; // Includes the entry just stored, even if it alone is over the budget
+            }
+            System.out.println(new Date().toString() + " Evicting cache entry " + entry.getName());
+            deleteRecursively(entry);
+            total -= sizes.get(entry);
+        }
+    }
+
+    private void touch(File entry) {
+        if (!entry.setLastModified(System.currentTimeMillis())) {
+            System.out.println(new Date().toString() + " Could not update access time of cache entry " + entry);
+        }
+    }
+
+    private void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        if (!file.delete() && file.exists()) {
+            System.out.println(new Date().toString() + " Could not delete " + file);
+        }
+    }
+
+    /*
+     SHA-256 of the file contents, remembered for as long as the file keeps its size and modification time.
+     */
+    private String fileDigest(String path) throws IOException {
+        File file = new File(path);
+        String memoKey = file.getAbsolutePath() + '|' + file.length() + '|' + file.lastModified();
+        String cached = fileDigests.get(memoKey);
+        if (cached != null) {
+            return cached;
+        }
+        String digest = ConllxFiles.sha256(file);
+        fileDigests.put(memoKey, digest);
+        return digest;
+    }
+
+    private static String digest(String value) {
+        return ConllxFiles.toHex(ConllxFiles.newSha256().digest(value.getBytes(StandardCharsets.UTF_8)));
+    }
+}
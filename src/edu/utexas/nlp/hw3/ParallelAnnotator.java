@@ -0,0 +1,162 @@
+package edu.utexas.nlp.hw3;
+
+import edu.stanford.nlp.parser.nndep.DependencyParser;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Annotates a CoNLL-X file with a trained model on several threads.
+ *
+ * The input is split into shards at sentence boundaries, every shard is parsed by the same read-only model on a
+ * shared worker pool and the shard outputs are merged back in their original order, so the annotations are
+ * identical to those of a single testCoNLL call. The LAS score is computed from per-shard counters.
+ *
+ * Shards are cut by token budget, as parsing time grows with the number of tokens rather than sentences. With length
+ * buckets the shards are cut from the length-bucketed copy of the input, so every shard holds sentences of similar
+ * length, and the annotations are put back into the order of the input through the copy's permutation.
+ */
+public class ParallelAnnotator {
+    private static final int SHARDS_PER_THREAD = 4;
+    private static final long MIN_SHARD_TOKENS = 25000;
+
+    private final ExecutorService executor;
+    private final int threads;
+    private final File shardDirectory;
+    private volatile boolean lengthBuckets;
+
+    public ParallelAnnotator(int threads, File shardDirectory) {
+        this.threads = Math.max(1, threads);
+        this.shardDirectory = shardDirectory;
+        this.executor = Executors.newFixedThreadPool(this.threads, runnable -> {
+            Thread thread = new Thread(runnable, "annotator");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /*
+     Cut the shards from length-bucketed copies of the inputs.
+     */
+    public void setLengthBuckets(boolean lengthBuckets) {
+        this.lengthBuckets = lengthBuckets;
+    }
+
+    /*
+     Parse testPath with model, write the annotations to testAnnotationsPath and return the LAS score.
+     Small inputs, or a single thread, are parsed directly.
+     */
+    public double annotate(DependencyParser model, String testPath, String testAnnotationsPath) throws IOException {
+        File input = new File(testPath);
+        SentenceIndex sentenceIndex = SentenceIndex.of(input);
+        long tokens = sentenceIndex.tokenCount(0, sentenceIndex.sentenceCount());
+        long shardTokens = Math.max(MIN_SHARD_TOKENS, tokens / ((long) threads * SHARDS_PER_THREAD));
+        if (threads == 1 || tokens <= shardTokens) {
+            try (AtomicFile file = new AtomicFile(new File(testAnnotationsPath))) {
+                double lasScore = model.testCoNLL(testPath, file.getTemporaryFile().getPath());
+                file.commit();
+                return lasScore;
+            }
+        }
+
+        LengthBuckets buckets = lengthBuckets ? LengthBuckets.of(input) : null;
+        File workDirectory = createWorkDirectory();
+        try {
+            List<File> shards = buckets == null ? shard(sentenceIndex, shardTokens, workDirectory)
+                    : shard(SentenceIndex.of(buckets.getBucketedFile()), shardTokens, workDirectory);
+            List<File> outputs = new ArrayList<>();
+            List<Future<ConllEvaluator>> results = new ArrayList<>();
+            for (File shard : shards) {
+                File output = new File(workDirectory, shard.getName() + ".annotations");
+                outputs.add(output);
+                results.add(executor.submit(() -> {
+                    model.testCoNLL(shard.getPath(), output.getPath());
+                    ConllEvaluator evaluator = new ConllEvaluator();
+                    evaluator.evaluate(shard, output);
+                    return evaluator;
+                }));
+            }
+
+            ConllEvaluator total = new ConllEvaluator();
+            for (Future<ConllEvaluator> result : results) {
+                total.add(result.get());
+            }
+            if (buckets == null) {
+                ConllxFiles.concatenate(outputs.toArray(new File[0]), new File(testAnnotationsPath));
+            } else {
+                File bucketedAnnotations = new File(workDirectory, "annotations.bucketed.conllx");
+                ConllxFiles.concatenate(outputs.toArray(new File[0]), bucketedAnnotations);
+                buckets.restore(bucketedAnnotations, new File(testAnnotationsPath));
+            }
+            return total.las();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while annotating " + testPath);
+        } catch (ExecutionException e) {
+            throw new IOException("Annotating a shard of " + testPath + " failed", e.getCause());
+        } finally {
+            deleteRecursively(workDirectory);
+        }
+    }
+
+    /*
+     Add the scores of predictedPath against goldPath to the evaluator, scoring parts of the files on the annotation threads.
+     */
+    public void evaluate(ConllEvaluator evaluator, String goldPath, String predictedPath) throws IOException {
+        evaluator.evaluate(new File(goldPath), new File(predictedPath), executor, threads * SHARDS_PER_THREAD);
+    }
+
+    /*
+     Split the indexed file into shards of about shardTokens tokens each, cutting only between sentences. The cuts are
+     found in the sentence index, so only the shard contents are read.
+     */
+    private List<File> shard(SentenceIndex sentenceIndex, long shardTokens, File workDirectory) throws IOException {
+        List<File> shards = new ArrayList<>();
+        try (FileChannel in = FileChannel.open(sentenceIndex.getFile().toPath(), StandardOpenOption.READ)) {
+            int shardStart = 0;
+            long tokens = 0;
+            for (int k = 0; k < sentenceIndex.sentenceCount(); k++) {
+                tokens += sentenceIndex.tokenCount(k);
+                if (tokens >= shardTokens) {
+                    shards.add(writeShard(sentenceIndex, in, shardStart, k + 1, workDirectory, shards.size()));
+                    shardStart = k + 1;
+                    tokens = 0;
+                }
+            }
+            if (shardStart < sentenceIndex.sentenceCount()) {
+                shards.add(writeShard(sentenceIndex, in, shardStart, sentenceIndex.sentenceCount(), workDirectory, shards.size()));
+            }
+        }
+        return shards;
+    }
+
+    private File writeShard(SentenceIndex sentenceIndex, FileChannel in, int from, int to, File workDirectory, int number) throws IOException {
+        File shard = new File(workDirectory, String.format("shard_%05d.conllx", number));
+        try (FileChannel out = FileChannel.open(shard.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            sentenceIndex.transferTo(in, from, to, out);
+        }
+        return shard;
+    }
+
+    private File createWorkDirectory() throws IOException {
+        if (!shardDirectory.isDirectory() && !shardDirectory.mkdirs()) {
+            throw new IOException("Could not create shard directory " + shardDirectory);
+        }
+        return java.nio.file.Files.createTempDirectory(shardDirectory.toPath(), "annotate").toFile();
+    }
+
+    private void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        if (!file.delete() && file.exists()) {
+            System.out.println(new Date().toString() + " Could not delete " + file);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package edu.utexas.nlp.hw3;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Index of incremental training sets which are all built from prefixes of a few canonical CoNLL-X files.
+ *
+ * For every size it records, per canonical file, how many bytes of that file belong to the training set. The
+ * training set of a size is the concatenation of those prefixes, so it never has to be written out separately
+ * unless a consumer needs it as a physical file.
+ */
+public class PrefixIndex {
+    private final List<File> files;
+    private final Map<Integer, long[]> prefixLengths; // size -> byte length of the prefix taken from each file
+
+    private PrefixIndex(List<File> files, Map<Integer, long[]> prefixLengths) {
+        this.files = files;
+        this.prefixLengths = prefixLengths;
+    }
+
+    /*
+     Build the index from the sentence index of each canonical file. sentenceCounts maps every size to the number of
+     sentences taken from each file. With requireAll set, sizes which need more sentences than a file has are left out;
+     otherwise the whole file is used.
+     */
+    public static PrefixIndex build(List<File> files, Map<Integer, int[]> sentenceCounts, boolean requireAll) throws IOException {
+        Map<Integer, long[]> prefixLengths = new TreeMap<>();
+        Set<Integer> incomplete = new HashSet<>();
+        for (Integer size : sentenceCounts.keySet()) {
+            prefixLengths.put(size, new long[files.size()]);
+        }
+
+        for (int i = 0; i < files.size(); i++) {
+            SentenceIndex sentenceIndex = SentenceIndex.of(files.get(i));
+            for (Map.Entry<Integer, int[]> entry : sentenceCounts.entrySet()) {
+                int count = entry.getValue()[i];
+                if (count <= 0) {
+                    continue;
+                }
+                if (count > sentenceIndex.sentenceCount()) { // File has fewer sentences than needed
+                    incomplete.add(entry.getKey());
+                }
+                int taken = Math.min(count, sentenceIndex.sentenceCount());
+                prefixLengths.get(entry.getKey())[i] = taken == 0 ? 0 : sentenceIndex.end(taken - 1);
+            }
+        }
+
+        if (requireAll) {
+            prefixLengths.keySet().removeAll(incomplete);
+        }
+        return new PrefixIndex(files, prefixLengths);
+    }
+
+    public boolean contains(int size) {
+        return prefixLengths.containsKey(size);
+    }
+
+    public Set<Integer> sizes() {
+        return Collections.unmodifiableSet(prefixLengths.keySet());
+    }
+
+    /*
+     Write the training set of the given size to destination, unless an up to date copy is already there.
+     */
+    public void materialize(int size, File destination) throws IOException {
+        long[] lengths = prefixLengths.get(size);
+        if (lengths == null) {
+            throw new IllegalArgumentException("No prefix of size " + size + " in the index");
+        }
+        long expectedLength = 0;
+        for (long length : lengths) {
+            expectedLength += length > 0 ? length + 1 : 0;
+        }
+        if (destination.length() == expectedLength && destination.lastModified() >= newestFileModification()) {
+            return;
+        }
+
+        try (AtomicFile file = new AtomicFile(destination)) {
+            try (FileChannel out = file.newChannel()) {
+                for (int i = 0; i < files.size(); i++) {
+                    if (lengths[i] == 0) {
+                        continue;
+                    }
+                    try (FileChannel in = FileChannel.open(files.get(i).toPath(), StandardOpenOption.READ)) {
+                        ConllxFiles.transferFully(in, 0, lengths[i], out);
+                    }
+                    // The prefix ends with the newline of its last token line, so one more newline separates the sentences
+                    ByteBuffer separator = ByteBuffer.wrap(new byte[]{'\n'});
+                    while (separator.hasRemaining()) {
+                        out.write(separator);
+                    }
+                }
+            }
+            file.commit();
+        }
+    }
+
+    private long newestFileModification() {
+        long newest = 0;
+        for (File file : files) {
+            newest = Math.max(newest, file.lastModified());
+        }
+        return newest;
+    }
+
+    /*
+     Format: first line lists the canonical files separated by tabs, then one line per size with its prefix lengths.
+     */
+    public void save(File indexFile) throws IOException {
+        try (AtomicFile output = new AtomicFile(indexFile)) {
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(output.newOutputStream(), StandardCharsets.UTF_8))) {
+                StringBuilder header = new StringBuilder();
+                for (File file : files) {
+                    if (header.length() > 0) {
+                        header.append('\t');
+                    }
+                    header.append(file.getPath());
+                }
+                writer.write(header.append('\n').toString());
+                for (Map.Entry<Integer, long[]> entry : prefixLengths.entrySet()) {
+                    StringBuilder line = new StringBuilder().append(entry.getKey());
+                    for (long length : entry.getValue()) {
+                        line.append('\t').append(length);
+                    }
+                    writer.write(line.append('\n').toString());
+                }
+            }
+            output.commit();
+        }
+    }
+
+    public static PrefixIndex load(File indexFile) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), StandardCharsets.UTF_8))) {
+            String header = reader.readLine();
+            if (header == null) {
+                throw new IOException("Empty prefix index " + indexFile);
+            }
+            List<File> files = new ArrayList<>();
+            for (String path : header.split("\t")) {
+                files.add(new File(path));
+            }
+            Map<Integer, long[]> prefixLengths = new TreeMap<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                long[] lengths = new long[files.size()];
+                for (int i = 0; i < lengths.length; i++) {
+                    lengths[i] = Long.parseLong(fields[i + 1]);
+                }
+                prefixLengths.put(Integer.parseInt(fields[0]), lengths);
+            }
+            return new PrefixIndex(files, prefixLengths);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package edu.utexas.nlp.hw3;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Record of what the last preprocessing run was built from, persisted as a properties file in the execution directory.
+ *
+ * It holds the size, modification time and SHA-256 of every input file, the configured size lists and the brown 90%
+ * counts. Comparing it with the inputs of the current run tells which derived files are still up to date.
+ */
+public class PreprocessManifest {
+    private static final String COUNT_PREFIX = "brown.count.";
+
+    private final Properties properties = new Properties();
+
+    public static PreprocessManifest load(File file) {
+        PreprocessManifest manifest = new PreprocessManifest();
+        if (file.isFile()) {
+            try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+                manifest.properties.load(reader);
+            } catch (IOException e) {
+                e.printStackTrace();
+                manifest.properties.clear(); // Treat an unreadable manifest as missing
+            }
+        }
+        return manifest;
+    }
+
+    /*
+     Written through an AtomicFile, so an interrupted run never leaves a truncated manifest behind.
+     */
+    public void save(File file) throws IOException {
+        try (AtomicFile atomicFile = new AtomicFile(file)) {
+            try (Writer writer = new OutputStreamWriter(atomicFile.newOutputStream(), StandardCharsets.UTF_8)) {
+                properties.store(writer, "Preprocessing manifest");
+            }
+            atomicFile.commit();
+        }
+    }
+
+    /*
+     Record the input file under key and return whether its contents are the same as in the previous manifest. The
+     content hash is only recomputed when the size or modification time changed.
+     */
+    public boolean recordInput(String key, File file, PreprocessManifest previous) throws IOException {
+        String size = String.valueOf(file.length());
+        String modified = String.valueOf(file.lastModified());
+        properties.setProperty(key + ".size", size);
+        properties.setProperty(key + ".mtime", modified);
+
+        String previousHash = previous.properties.getProperty(key + ".sha256");
+        String hash;
+        if (previousHash != null && size.equals(previous.properties.getProperty(key + ".size"))
+                && modified.equals(previous.properties.getProperty(key + ".mtime"))) {
+            hash = previousHash;
+        } else {
+            hash = ConllxFiles.sha256(file);
+        }
+        properties.setProperty(key + ".sha256", hash);
+        return hash.equals(previousHash);
+    }
+
+    public void put(String key, String value) {
+        properties.setProperty(key, value);
+    }
+
+    public String get(String key) {
+        return properties.getProperty(key);
+    }
+
+    /*
+     Whether key has the same value here as in the other manifest.
+     */
+    public boolean sameAs(PreprocessManifest other, String key) {
+        return Objects.equals(get(key), other.get(key));
+    }
+
+    public void putBrown90PercentCounts(Map<String, Integer> counts) {
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            properties.setProperty(COUNT_PREFIX + entry.getKey(), String.valueOf(entry.getValue()));
+        }
+    }
+
+    public Map<String, Integer> getBrown90PercentCounts() {
+        Map<String, Integer> counts = new HashMap<>();
+        for (String key : properties.stringPropertyNames()) {
+            if (key.startsWith(COUNT_PREFIX)) {
+                counts.put(key.substring(COUNT_PREFIX.length()), Integer.parseInt(properties.getProperty(key)));
+            }
+        }
+        return counts;
+    }
+}
@@ -1,17 +1,29 @@
 package edu.utexas.nlp.hw3;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Created by pandian on 3/25/17.
  */
 public class Preprocessor {
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+    private static final String[] CANONICAL_CORPORA = {"wsj_training", "wsj_test", "brown_training", "brown_test"};
+    private static final int WSJ_SECTIONS = 23; // Sections 00 to 22 of wsj_training, the strata of its samples
+
     private String wsjSeedSetFilePath; // wsj_00_22.conllx
     private String wsjTestSetFilePath; // wsj_23.conllx
     private String brownCorpusBasePath; // brown-conllx
     private String executionDirectory;
     private Map<String, Integer> brown90PercentCounts;
+    private Map<String, PrefixIndex> seedSelfTrainingIndexes; // corpus name -> index of its incremental files
+    private Map<String, SampleIndex> sampleIndexes = new HashMap<>(); // corpus name and seed -> index of its samples
+    private boolean writeBinaryCorpora;
+    private boolean writeLengthBuckets;
+    private RunReport runReport = new RunReport(null);
 
     private List<Integer> wsjSeedSetSizes;
     private List<Integer> brownSelfTrainingSizes;
@@ -26,25 +38,20 @@ public class Preprocessor {
         this.brownCorpusBasePath = brownCorpusBasePath;
         this.executionDirectory = executionDirectory;
 
-        wsjSeedSetSizes = new ArrayList<>(Arrays.asList(1000, 2000, 3000, 4000, 5000, 7000, 10000, 12000, 14000));
-        brownSelfTrainingSizes = new ArrayList<>(Arrays.asList(1000, 2000, 3000, 4000, 5000, 7000, 10000, 13000, 17000, 21000));
+        ExperimentConfig defaultGrid = new ExperimentConfig();
+        wsjSeedSetSizes = defaultGrid.sizes("wsj");
+        brownSelfTrainingSizes = defaultGrid.sizes("brown");
 
         createDirectory();
         brown90PercentCounts = new HashMap<>();
+        seedSelfTrainingIndexes = new HashMap<>();
     }
 
-    private void readFromFile(String fileName, StringBuilder builder) {
-        String line;
-        try {
-            FileReader fileReader = new FileReader(fileName);
-            BufferedReader bufferedReader = new BufferedReader(fileReader);
-
-            while ((line = bufferedReader.readLine()) != null) {
-                builder.append(line).append("\n");
+    private void readFromFile(String fileName, OutputStream outputStream) throws IOException {
+        try (ConllxSentenceReader reader = new ConllxSentenceReader(new File(fileName))) {
+            while (reader.next()) {
+                reader.writeTo(outputStream);
             }
-            bufferedReader.close();
-        } catch (IOException e) {
-            e.printStackTrace();
         }
     }
 
@@ -52,6 +59,40 @@ public class Preprocessor {
         this.brown90PercentCounts.putAll(brown90PercentCounts);
     }
 
+    /*
+     Also write a .conllb binary companion next to every canonical corpus file, which ConllEvaluator then reads the
+     gold test sets from.
+     */
+    public void setWriteBinaryCorpora(boolean writeBinaryCorpora) {
+        this.writeBinaryCorpora = writeBinaryCorpora;
+    }
+
+    /*
+     Also write a length-bucketed copy with its permutation next to every canonical corpus file, the inputs the
+     annotator cuts its shards from.
+     */
+    public void setWriteLengthBuckets(boolean writeLengthBuckets) {
+        this.writeLengthBuckets = writeLengthBuckets;
+    }
+
+    /*
+     Sizes of the incremental wsj sets to index, by default those of the default grid.
+     */
+    public void setWsjSeedSetSizes(List<Integer> wsjSeedSetSizes) {
+        this.wsjSeedSetSizes = wsjSeedSetSizes;
+    }
+
+    /*
+     Sizes of the incremental brown sets to index, by default those of the default grid.
+     */
+    public void setBrownSelfTrainingSizes(List<Integer> brownSelfTrainingSizes) {
+        this.brownSelfTrainingSizes = brownSelfTrainingSizes;
+    }
+
+    public void setRunReport(RunReport runReport) {
+        this.runReport = runReport;
+    }
+
     private void createDirectory() {
         File directory = new File(this.executionDirectory);
         if (directory.mkdir()) {
@@ -62,292 +103,638 @@ public class Preprocessor {
     }
 
     /*
-      Create separate conllx files with 1000, 2000, 3000 etc number of sentences from the wsj seed set
+      Index the conllx prefixes with 1000, 2000, 3000 etc number of sentences of the wsj seed set.
+      Needs the copy of the seed set made by copyWsjTrainingTestFilesIntoExecutionDir.
      */
     public void createWsjSeedFiles() {
-        createIncrementalSeedFiles(wsjSeedSetFilePath, wsjSeedSetSizes, "wsj_seed_self_training_");
+        createIncrementalSeedFiles(executionDirectory + "/" + "wsj_training.conllx", wsjSeedSetSizes, "wsj_seed_self_training_");
     }
 
     public void copyWsjTrainingTestFilesIntoExecutionDir() {
-        StringBuilder trainingBuilder = new StringBuilder();
-        StringBuilder testBuilder = new StringBuilder();
-
         String wsjTrainingFileName = executionDirectory + "/" + "wsj_training.conllx";
         String wsjTestFileName = executionDirectory + "/" + "wsj_test.conllx";
 
-        readFromFile(wsjSeedSetFilePath, trainingBuilder);
-        readFromFile(wsjTestSetFilePath, testBuilder);
-
-        writeToFile(wsjTrainingFileName, trainingBuilder);
-        writeToFile(wsjTestFileName, testBuilder);
+        try {
+            copyFile(wsjSeedSetFilePath, wsjTrainingFileName);
+            copyFile(wsjTestSetFilePath, wsjTestFileName);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not copy the WSJ files into " + executionDirectory, e);
+        }
     }
 
-    private void readFromBrownGenre(String genre, int num_to_read, StringBuilder stringBuilder) {
-        boolean sentenceStarted = false;
-        try {
-            String line;
-            int count = 0;
-
-            String fileName = executionDirectory + "/" + "brown_training_" + genre + ".conllx";
-            FileReader fileReader = new FileReader(new File(fileName));
-            BufferedReader bufferedReader = new BufferedReader(fileReader);
-
-            while ((line = bufferedReader.readLine()) != null) {
-                if (line.length() == 0) {
-                    if (sentenceStarted) {
-                        count++;
-                        if (count <= num_to_read) {
-                            stringBuilder.append(line).append("\n");
-                        } else {
-                            break;
-                        }
-                        sentenceStarted = false;
-                    }
-                } else {
-                    if (count <= num_to_read) {
-                        stringBuilder.append(line).append("\n");
-                    } else {
-                        break;
-                    }
-                    sentenceStarted = true;
-                }
-            }
-            if (sentenceStarted) {
-                count++;
-                if (count <= num_to_read) {
-                    stringBuilder.append("\n");
-                }
+    private void copyFile(String source, String destination) throws IOException {
+        try (AtomicFile file = new AtomicFile(new File(destination))) {
+            try (OutputStream outputStream = openOutputFile(file)) {
+                readFromFile(source, outputStream);
             }
-        } catch (IOException e) {
-            e.printStackTrace();
+            file.commit();
         }
     }
 
     /*
-     Create separate files with 1000, 2000, 3000 etc number of sentences from the brown self-training set
+     Index the files with 1000, 2000, 3000 etc number of sentences from the brown self-training set. Each one takes the
+     same proportion of every genre, so it is made of prefixes of the brown_training_<genre> files.
      */
     private void createBrownTrainingFiles() {
-//        createIncrementalSeedFiles(this.executionDirectory + "/" + "brown_training.conllx", brownSelfTrainingSizes, "brown_seed_self_training_");
-        int no_genres = 8;
         int totalTrainingCount = 0;
         for (String genre: brown90PercentCounts.keySet()) {
             totalTrainingCount += brown90PercentCounts.get(genre);
         }
-        for (Integer brownSelfTrainingSize : brownSelfTrainingSizes) {
-            int trainingSize = brownSelfTrainingSize;
 
-            StringBuilder stringBuilder = new StringBuilder();
-            File baseDir = new File(brownCorpusBasePath);
-            for (File genreDir : baseDir.listFiles()) {
-                int trainingCount = brown90PercentCounts.get(genreDir.getName());
-                int individual_size = (int) Math.round((double) trainingCount * (double) trainingSize / (double) totalTrainingCount);
-                readFromBrownGenre(genreDir.getName(), individual_size, stringBuilder);
+        List<File> genreFiles = new ArrayList<>();
+        File[] genreDirs = sortedGenreDirectories();
+        for (File genreDir : genreDirs) {
+            genreFiles.add(new File(executionDirectory + "/" + "brown_training_" + genreDir.getName() + ".conllx"));
+        }
+
+        Map<Integer, int[]> sentenceCounts = new HashMap<>();
+        for (Integer trainingSize : brownSelfTrainingSizes) {
+            int[] individualSizes = new int[genreDirs.length];
+            for (int i = 0; i < genreDirs.length; i++) {
+                int trainingCount = brown90PercentCounts.get(genreDirs[i].getName());
+                individualSizes[i] = (int) Math.round((double) trainingCount * (double) trainingSize / (double) totalTrainingCount);
             }
-            String fileName = executionDirectory + "/" + "brown_seed_self_training_" + String.valueOf(trainingSize) + ".conllx";
-            writeToFile(fileName, stringBuilder);
+            sentenceCounts.put(trainingSize, individualSizes);
         }
+        createPrefixIndex(genreFiles, sentenceCounts, false, "brown_seed_self_training_");
     }
 
     /*
-      Generic method to create the incremental sub files with increasing number of sentences from the seed/self-training set
+      Generic method to index the incremental sub files with increasing number of sentences from the seed/self-training set
      */
     private void createIncrementalSeedFiles(String mainFile, List<Integer> incrementalSizes, String subFilePrefix) {
-        String line;
+        Map<Integer, int[]> sentenceCounts = new HashMap<>();
+        for (Integer size : incrementalSizes) {
+            sentenceCounts.put(size, new int[]{size});
+        }
+        // Sub files larger than the main file are not created
+        createPrefixIndex(Collections.singletonList(new File(mainFile)), sentenceCounts, true, subFilePrefix);
+    }
+
+    private void createPrefixIndex(List<File> files, Map<Integer, int[]> sentenceCounts, boolean requireAll, String subFilePrefix) {
+        String indexFileName = executionDirectory + "/" + subFilePrefix + "index.tsv";
+        System.out.println(currentTime() + "Writing prefix index " + indexFileName + " . . .");
+        try {
+            PrefixIndex prefixIndex = PrefixIndex.build(files, sentenceCounts, requireAll);
+            prefixIndex.save(new File(indexFileName));
+            seedSelfTrainingIndexes.put(subFilePrefix, prefixIndex);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write prefix index " + indexFileName, e);
+        }
+    }
 
-        int index = 0;
-        int count = 0;
-        boolean sentenceStarted = false;
-        StringBuilder stringBuilder = new StringBuilder();
+    /*
+     Make sure <corpus>_seed_self_training_<size>.conllx exists as a physical file and return its path. The file is
+     only written the first time a consumer asks for it. Experiments running concurrently may ask for the same file.
+     */
+    public synchronized String materializeSeedSelfTrainingFile(String corpus, int size) {
+        String subFilePrefix = corpus + "_seed_self_training_";
+        String fileName = executionDirectory + "/" + subFilePrefix + String.valueOf(size) + ".conllx";
+        try {
+            PrefixIndex prefixIndex = seedSelfTrainingIndexes.get(subFilePrefix);
+            if (prefixIndex == null) {
+                prefixIndex = PrefixIndex.load(new File(executionDirectory + "/" + subFilePrefix + "index.tsv"));
+                seedSelfTrainingIndexes.put(subFilePrefix, prefixIndex);
+            }
+            if (prefixIndex.contains(size)) {
+                System.out.println(currentTime() + "Materializing " + fileName + " from prefix index . . .");
+                prefixIndex.materialize(size, new File(fileName));
+            } else {
+                System.out.println(currentTime() + "No " + size + " sentence prefix available for " + fileName + " !");
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not materialize " + fileName, e);
+        }
+        return fileName;
+    }
 
+    /*
+     Make sure the sample of the given size of <corpus>_training exists as a physical file and return its path: the
+     stratified random sample drawn with the seed, from all of the corpus or, with folds > 0, from all but fold of the
+     folds. Like the prefix files, the file is only written the first time a consumer asks for it.
+     */
+    public synchronized String materializeSampleFile(String corpus, int size, long seed, int fold, int folds) {
+        String fileName = executionDirectory + "/" + corpus + "_sample_" + seed
+                + (folds > 0 ? "_fold_" + fold + "_of_" + folds : "") + "_" + size + ".conllx";
         try {
-            FileReader fileReader = new FileReader(mainFile);
-            BufferedReader bufferedReader = new BufferedReader(fileReader);
+            SampleIndex sampleIndex = sampleIndex(corpus, seed);
+            if (sampleIndex.contains(size, fold, folds)) {
+                System.out.println(currentTime() + "Materializing " + fileName + " from sample index . . .");
+                sampleIndex.materialize(size, fold, folds, new File(fileName));
+            } else {
+                System.out.println(currentTime() + "No " + size + " sentence sample available for " + fileName + " !");
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not materialize " + fileName, e);
+        }
+        return fileName;
+    }
 
-            while ((line = bufferedReader.readLine()) != null) {
-                // If no longer required to create separate sub seed files, break
-                if (index >= incrementalSizes.size()) {
-                    break;
+    /*
+     The sample index of the corpus with the seed, built with one pass over the corpus unless a current one was saved
+     by an earlier run. wsj is stratified by section, brown by genre.
+     */
+    private SampleIndex sampleIndex(String corpus, long seed) throws IOException {
+        String key = corpus + "_" + seed;
+        List<File> files = new ArrayList<>();
+        int strataPerFile;
+        if (corpus.equals("wsj")) {
+            files.add(new File(executionDirectory + "/" + "wsj_training.conllx"));
+            strataPerFile = WSJ_SECTIONS;
+        } else {
+            for (File genreDir : sortedGenreDirectories()) {
+                files.add(new File(executionDirectory + "/" + "brown_training_" + genreDir.getName() + ".conllx"));
+            }
+            strataPerFile = 1;
+        }
+        File indexFile = new File(executionDirectory + "/" + corpus + "_sample_" + seed + "_index.tsv");
+        SampleIndex sampleIndex = sampleIndexes.get(key);
+        if (sampleIndex == null && indexFile.isFile()) {
+            sampleIndex = SampleIndex.load(indexFile);
+        }
+        if (sampleIndex == null || !sampleIndex.isCurrent(files, strataPerFile, seed, indexFile.lastModified())) {
+            System.out.println(currentTime() + "Writing sample index " + indexFile + " . . .");
+            try (RunReport.Stage stage = runReport.start("preprocess", corpus + "_sample_index")) {
+                for (File file : files) {
+                    stage.input(file.getPath());
                 }
-                if (line.length() == 0) { // Empty line indicates division between sentences
-                    if (sentenceStarted) {
-                        stringBuilder.append(line).append("\n");
-                        count++;
-                        if (count == incrementalSizes.get(index)) { // Write the contents of the file so far to a new file
-                            String fileName = this.executionDirectory + "/" + subFilePrefix + String.valueOf(count) + ".conllx";
-                            writeToFile(fileName, stringBuilder);
-                            index++;
+                stage.output(indexFile.getPath());
+                sampleIndex = SampleIndex.build(files, strataPerFile, seed);
+                sampleIndex.save(indexFile);
+            }
+        }
+        sampleIndexes.put(key, sampleIndex);
+        return sampleIndex;
+    }
+
+    /*
+     Genre directories of the brown corpus in alphabetical order, so every output lists the genres in the same order.
+     */
+    private File[] sortedGenreDirectories() {
+        File[] genreDirs = new File(brownCorpusBasePath).listFiles(File::isDirectory);
+        if (genreDirs == null) {
+            return new File[0];
+        }
+        Arrays.sort(genreDirs);
+        return genreDirs;
+    }
+
+    /*
+     Result of splitting one genre: its sentence count, its training count and the file holding its test sentences.
+     */
+    private static class GenreSplit {
+        String name;
+        int count;
+        int trainingCount;
+        int testCount;
+        File testPart;
+    }
+
+    /*
+     Read every file of the genre once, in alphabetical order, into brown_training_<genre>.conllx. Once the genre's
+     sentence count is known, the sentences beyond its 90% share are moved into a separate test part. Both parts get
+     their sentence index from the offsets recorded while writing.
+     */
+    private GenreSplit splitGenre(File genreDir) throws IOException {
+        GenreSplit split = new GenreSplit();
+        split.name = genreDir.getName();
+        System.out.println(currentTime() + "Parsing genre " + split.name + " . .");
+
+        File[] files = genreDir.listFiles();
+        if (files == null) {
+            files = new File[0];
+        }
+        Arrays.sort(files); // To process the files in alphabetical order
+
+        String genreFileName = executionDirectory + "/" + "brown_training_" + split.name + ".conllx";
+        // Where each sentence lands in the genre file, for the split and the sentence indexes of both parts
+        long[] sentenceStarts = new long[1024];
+        int[] sentenceLengths = new int[1024];
+        int[] tokenCounts = new int[1024];
+        split.testPart = brownTestPart(split.name);
+        long trainingBytes;
+        try (AtomicFile genreFile = new AtomicFile(new File(genreFileName)); AtomicFile testFile = new AtomicFile(split.testPart)) {
+            try (CountingOutputStream genreStream = new CountingOutputStream(openOutputFile(genreFile))) {
+                for (File file : files) {
+                    try (ConllxSentenceReader reader = new ConllxSentenceReader(file)) {
+                        while (reader.next()) {
+                            if (split.count == sentenceStarts.length) {
+                                sentenceStarts = Arrays.copyOf(sentenceStarts, split.count * 2);
+                                sentenceLengths = Arrays.copyOf(sentenceLengths, split.count * 2);
+                                tokenCounts = Arrays.copyOf(tokenCounts, split.count * 2);
+                            }
+                            long start = genreStream.getCount();
+                            reader.writeTo(genreStream);
+                            sentenceStarts[split.count] = start;
+                            sentenceLengths[split.count] = (int) (genreStream.getCount() - start - 1); // Without the empty line
+                            tokenCounts[split.count] = reader.tokenCount();
+                            split.count++;
                         }
-                        sentenceStarted = false;
                     }
-                } else { // If not an empty line, add to buffer
-                    stringBuilder.append(line).append("\n");
-                    sentenceStarted = true;
                 }
             }
-            if (index < incrementalSizes.size() && sentenceStarted) {
-                stringBuilder.append("\n");
-                count++;
-                if (count == incrementalSizes.get(index)) { // Write the contents of the file so far to a new file
-                    String fileName = this.executionDirectory + "/" + subFilePrefix + String.valueOf(count) + ".conllx";
-                    writeToFile(fileName, stringBuilder);
-                }
+
+            // A preset count larger than the genre takes all of it
+            Integer presetCount = brown90PercentCounts.get(split.name);
+            split.trainingCount = Math.min(presetCount != null ? presetCount : (int) Math.round(split.count * 90.0 / 100.0), split.count);
+            trainingBytes = split.trainingCount == 0 ? 0
+                    : sentenceStarts[split.trainingCount - 1] + sentenceLengths[split.trainingCount - 1] + 1;
+
+            split.testCount = split.count - split.trainingCount;
+            try (FileChannel genreChannel = FileChannel.open(genreFile.getTemporaryFile().toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                 FileChannel testChannel = testFile.newChannel()) {
+                ConllxFiles.transferFully(genreChannel, trainingBytes, genreChannel.size() - trainingBytes, testChannel);
+                genreChannel.truncate(trainingBytes);
             }
-            bufferedReader.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+            testFile.commit();
+            genreFile.commit();
         }
+        SentenceIndex.write(new File(genreFileName), sentenceStarts, sentenceLengths, tokenCounts, 0, split.trainingCount, 0, true);
+        SentenceIndex.write(split.testPart, sentenceStarts, sentenceLengths, tokenCounts, split.trainingCount, split.count, -trainingBytes, true);
+        return split;
     }
 
-    private int getNumberOfSentences(File file) {
-        String line;
+    /*
+     File holding the test sentences (the last 10%) of a genre.
+     */
+    private File brownTestPart(String genre) {
+        return new File(executionDirectory + "/" + "brown_test_" + genre + ".conllx");
+    }
 
-        boolean sentenceStarted = false;
-        int count = 0;
+    /*
+     Create separate files for brown self-training set (90%) and brown test set (10%). The genres are split
+     concurrently, each with a single read of its files which both counts the sentences and splits them.
+     */
+    public void createBrownTrainingTestSplit() {
+        Set<String> genres = new HashSet<>();
+        for (File genreDir : sortedGenreDirectories()) {
+            genres.add(genreDir.getName());
+        }
+        createBrownTrainingTestSplit(genres);
+    }
 
+    /*
+     Split only the given genres again; the other genres keep their existing training files, test parts and counts.
+     */
+    private void createBrownTrainingTestSplit(Set<String> genresToSplit) {
+        if (brown90PercentCounts.size() == 0) {
+            System.out.println(currentTime() + "90 Percent counts not given. Populating them while splitting the genres . . .");
+        }
+        File[] genreDirs = sortedGenreDirectories();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(genreDirs.length, Runtime.getRuntime().availableProcessors())));
+        List<GenreSplit> splits = new ArrayList<>();
         try {
-            FileReader fileReader = new FileReader(file);
-            BufferedReader bufferedReader = new BufferedReader(fileReader);
-
-            while ((line = bufferedReader.readLine()) != null) {
-                if (line.length() == 0) {
-                    if (sentenceStarted) {
-                        count++;
-                        sentenceStarted = false;
-                    }
+            List<Future<GenreSplit>> futures = new ArrayList<>();
+            for (File genreDir : genreDirs) {
+                if (genresToSplit.contains(genreDir.getName())) {
+                    futures.add(executor.submit(() -> splitGenre(genreDir)));
                 } else {
-                    sentenceStarted = true;
+                    GenreSplit unchanged = new GenreSplit();
+                    unchanged.name = genreDir.getName();
+                    unchanged.testPart = brownTestPart(unchanged.name);
+                    futures.add(executor.submit(() -> {
+                        // The sentences actually in the training file, which a preset count may exceed
+                        unchanged.trainingCount = SentenceIndex.of(new File(executionDirectory + "/" + "brown_training_"
+                                + unchanged.name + ".conllx")).sentenceCount();
+                        unchanged.testCount = SentenceIndex.of(unchanged.testPart).sentenceCount();
+                        return unchanged;
+                    }));
                 }
             }
-        } catch (IOException e) {
-            e.printStackTrace();
+            for (Future<GenreSplit> future : futures) {
+                splits.add(future.get());
+            }
+        } catch (InterruptedException e) { // The split files are incomplete, so no manifest may record them
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while splitting the brown genres", e);
+        } catch (ExecutionException e) {
+            throw new UncheckedIOException("Could not split the brown genres", e.getCause() instanceof IOException
+                    ? (IOException) e.getCause() : new IOException(e.getCause()));
+        } finally {
+            executor.shutdown();
         }
-        if (sentenceStarted) {
-            count++;
+
+        File[] genreTrainingFiles = new File[splits.size()];
+        File[] genreTestParts = new File[splits.size()];
+        for (int i = 0; i < splits.size(); i++) {
+            GenreSplit split = splits.get(i);
+            brown90PercentCounts.put(split.name, split.trainingCount);
+            genreTrainingFiles[i] = new File(executionDirectory + "/" + "brown_training_" + split.name + ".conllx");
+            genreTestParts[i] = split.testPart;
+        }
+        System.out.println(currentTime() + "90 Percent counts: ");
+        System.out.println(brown90PercentCounts);
+
+        String brownTrainingFileName = this.executionDirectory + "/" + "brown_training.conllx";
+        String brownTestFileName = this.executionDirectory + "/" + "brown_test.conllx";
+        try {
+            writeBrownGenreCounts(splits);
+            System.out.println(currentTime() + "Writing to file " + brownTrainingFileName + " . . .");
+            ConllxFiles.concatenate(genreTrainingFiles, new File(brownTrainingFileName));
+            System.out.println(currentTime() + "Writing to file " + brownTestFileName + " . . .");
+            ConllxFiles.concatenate(genreTestParts, new File(brownTestFileName));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write " + brownTrainingFileName + " and " + brownTestFileName, e);
         }
-        return count;
     }
 
     /*
-     Do an initial parse over the brown conllx files genre wise and populate the appropriate 90% counts for each genre.
+     Record the genre of every sentence of brown_training and brown_test as the number of consecutive sentences each
+     genre contributes, one "genre training_count test_count" line per genre in file order.
      */
-    private void populateBrown90PercentCounts() {
-        System.out.println(currentTime() + "90 Percent counts not given. Populating them by one-time pass through the files in the genres . . .");
-        File baseDir = new File(brownCorpusBasePath);
-        for (File genreDir: baseDir.listFiles()) {
-            int count = 0;
-            String name = genreDir.getName();
-            System.out.println(currentTime() + "Parsing genre " + name + " . .");
-            File[] files = genreDir.listFiles();
-            if (files != null) {
-                Arrays.sort(files); // To process the files in alphabetical order
+    private void writeBrownGenreCounts(List<GenreSplit> splits) throws IOException {
+        try (AtomicFile file = new AtomicFile(new File(executionDirectory + "/" + "brown_genres.tsv"))) {
+            try (Writer writer = new OutputStreamWriter(openOutputFile(file), "UTF-8")) {
+                for (GenreSplit split : splits) {
+                    writer.write(split.name + "\t" + split.trainingCount + "\t" + split.testCount + "\n");
+                }
             }
-            for (File file: files) {
-                count += getNumberOfSentences(file);
+            file.commit();
+        }
+    }
+
+    /*
+     Sentence count of every genre in brown_training (or brown_test), in file order. Empty if the genres are unknown.
+     */
+    public LinkedHashMap<String, Integer> readBrownGenreCounts(boolean test) {
+        LinkedHashMap<String, Integer> counts = new LinkedHashMap<>();
+        File file = new File(executionDirectory + "/" + "brown_genres.tsv");
+        if (!file.isFile()) {
+            return counts;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] splits = line.split("\t");
+                counts.put(splits[0], Integer.parseInt(splits[test ? 2 : 1]));
             }
-            Integer trainingSetCount = (int) Math.round(count * 90.0 / 100.0);
-            brown90PercentCounts.put(name, trainingSetCount);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read the brown genre counts " + file, e);
         }
-        System.out.println(currentTime() + "90 Percent counts populated: ");
-        System.out.println(brown90PercentCounts);
-        for (String key: brown90PercentCounts.keySet()) {
-            System.out.println("brown90PercentCounts[" + key + "]: " + brown90PercentCounts.get(key));
+        return counts;
+    }
+
+    /*
+     Open a buffered stream to the temporary file of the given file. Only OUTPUT_BUFFER_SIZE bytes are held in memory at
+     any time.
+     */
+    private OutputStream openOutputFile(AtomicFile file) throws IOException {
+        System.out.println(currentTime() + "Writing to file " + file.getTargetFile() + " . . .");
+        return new BufferedOutputStream(file.newOutputStream(), OUTPUT_BUFFER_SIZE);
+    }
+
+
+    /*
+     Output stream which keeps track of the number of bytes written through it.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream outputStream) {
+            super(outputStream);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        long getCount() {
+            return count;
         }
     }
 
     /*
-     Create separate files for brown self-training set (90%) and brown test set (10%)
+     Give every canonical corpus file a current sentence index, so its consumers never have to scan it. An index which
+     cannot be written is skipped with a warning, and its file is scanned instead.
      */
-    public void createBrownTrainingTestSplit() {
-        if (brown90PercentCounts.size() == 0) {
-            populateBrown90PercentCounts();
-        }
-
-        StringBuilder brownTrainingBuilder = new StringBuilder();
-        StringBuilder brownTestBuilder = new StringBuilder();
-
-        File baseDir = new File(brownCorpusBasePath);
-        for (File genreDir: baseDir.listFiles()) {
-            StringBuilder genreStringBuilder = new StringBuilder();
-            int count = 0;
-            String name = genreDir.getName();
-            int trainingCount = brown90PercentCounts.get(name);
-
-            for (File file: genreDir.listFiles()) {
-                boolean sentenceStarted = false;
-
-                try {
-                    String line;
-
-                    FileReader fileReader = new FileReader(file);
-                    BufferedReader bufferedReader = new BufferedReader(fileReader);
-
-                    while ((line = bufferedReader.readLine()) != null) {
-                        if (line.length() == 0) {
-                            if (sentenceStarted) {
-                                count++;
-                                if (count <= trainingCount) {
-                                    brownTrainingBuilder.append(line).append("\n");
-                                    genreStringBuilder.append(line).append("\n");
-                                } else {
-                                    brownTestBuilder.append(line).append("\n");
-                                }
-                                sentenceStarted = false;
-                            }
-                        } else {
-                            if (count <= trainingCount) {
-                                brownTrainingBuilder.append(line).append("\n");
-                                genreStringBuilder.append(line).append("\n");
-                            } else {
-                                brownTestBuilder.append(line).append("\n");
-                            }
-                            sentenceStarted = true;
-                        }
-                    }
-                    if (sentenceStarted) {
-                        count++;
-                        if (count <= trainingCount) {
-                            brownTrainingBuilder.append("\n");
-                            genreStringBuilder.append("\n");
-                        } else {
-                            brownTestBuilder.append("\n");
-                        }
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
+    private void createSentenceIndexes() {
+        for (String corpus : CANONICAL_CORPORA) {
+            File file = new File(executionDirectory + "/" + corpus + ".conllx");
+            try {
+                if (SentenceIndex.openIfCurrent(file) == null) {
+                    System.out.println(currentTime() + "Writing sentence index " + SentenceIndex.sidecar(file) + " . . .");
+                    SentenceIndex.of(file);
                 }
+            } catch (IOException e) {
+                System.out.println(currentTime() + "Skipping sentence index of " + file + " (" + e + "), readers will scan the file instead");
             }
+        }
+    }
 
-            String genreFileName = executionDirectory + "/" + "brown_training_" + name + ".conllx";
-            writeToFile(genreFileName, genreStringBuilder);
-            genreStringBuilder.setLength(0);
+    /*
+     Write the length-bucketed copies of the canonical corpus files, skipping those which are already current. A copy
+     which cannot be written fails preprocessing, since the annotator would need it later anyway.
+     */
+    private void createLengthBuckets() {
+        for (String corpus : CANONICAL_CORPORA) {
+            File file = new File(executionDirectory + "/" + corpus + ".conllx");
+            System.out.println(currentTime() + "Ordering " + file + " by sentence length . . .");
+            try {
+                LengthBuckets.of(file);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not order " + file + " by sentence length", e);
+            }
         }
+    }
 
-        String brownTrainingFileName = this.executionDirectory + "/" + "brown_training.conllx";
-        String brownTestFileName = this.executionDirectory + "/" + "brown_test.conllx";
+    /*
+     Convert the canonical corpus files into their binary form, skipping those whose binary is already up to date. A
+     binary which cannot be written is skipped with a warning, and the evaluator reads the text file instead.
+     */
+    private void createBinaryCorpora() {
+        for (String corpus : CANONICAL_CORPORA) {
+            String fileName = executionDirectory + "/" + corpus + ".conllx";
+            if (BinaryConllxCorpus.currentBinaryPath(new File(fileName)) != null) {
+                continue;
+            }
+            File binaryFile = BinaryConllxCorpus.binaryPath(fileName);
+            System.out.println(currentTime() + "Writing binary corpus " + binaryFile + " . . .");
+            try {
+                BinaryConllxCorpus.fromConllx(new File(fileName)).write(binaryFile);
+            } catch (IOException e) {
+                System.out.println(currentTime() + "Skipping binary corpus " + binaryFile + " (" + e + "), evaluation reads " + fileName + " instead");
+            }
+        }
+    }
 
-        writeToFile(brownTrainingFileName, brownTrainingBuilder);
-        writeToFile(brownTestFileName, brownTestBuilder);
+    private boolean allExist(String... fileNames) {
+        for (String fileName : fileNames) {
+            if (!new File(executionDirectory + "/" + fileName).isFile()) {
+                return false;
+            }
+        }
+        return true;
+    }
 
+    /*
+     The preprocessing steps, each measured as one stage of the run report.
+     */
+    private void copyWsjStage() {
+        try (RunReport.Stage stage = runReport.start("preprocess", "copy_wsj")) {
+            stage.input(wsjSeedSetFilePath, wsjTestSetFilePath).output(inExecutionDirectory(new String[]{"wsj_training", "wsj_test"}, ".conllx"));
+            copyWsjTrainingTestFilesIntoExecutionDir();
+        }
     }
 
-    private void writeToFile(String fileName, StringBuilder stringBuilder) {
-        System.out.println(currentTime() + "Writing to file " + fileName + " . . .");
-        try {
-            FileWriter fileWriter = new FileWriter(fileName);
-            BufferedWriter bufferedWriter = new BufferedWriter(fileWriter);
-            bufferedWriter.write(stringBuilder.toString());
-            bufferedWriter.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+    private void wsjSeedStage() {
+        try (RunReport.Stage stage = runReport.start("preprocess", "wsj_seed_index")) {
+            stage.input(executionDirectory + "/" + "wsj_training.conllx").output(executionDirectory + "/" + "wsj_seed_self_training_index.tsv");
+            createWsjSeedFiles();
         }
     }
 
+    /*
+     Split the changed genres, or all of them when changedGenres is null.
+     */
+    private void brownSplitStage(Set<String> changedGenres) {
+        try (RunReport.Stage stage = runReport.start("preprocess", "brown_split")) {
+            for (File genreDir : sortedGenreDirectories()) {
+                if (changedGenres == null || changedGenres.contains(genreDir.getName())) {
+                    File[] files = genreDir.listFiles();
+                    for (File file : files == null ? new File[0] : files) {
+                        stage.input(file.getPath());
+                    }
+                }
+            }
+            stage.output(inExecutionDirectory(new String[]{"brown_training", "brown_test"}, ".conllx"));
+            if (changedGenres == null) {
+                createBrownTrainingTestSplit();
+            } else {
+                createBrownTrainingTestSplit(changedGenres);
+            }
+        }
+    }
+
+    private void brownTrainingStage() {
+        try (RunReport.Stage stage = runReport.start("preprocess", "brown_self_training_index")) {
+            stage.input(executionDirectory + "/" + "brown_training.conllx").output(executionDirectory + "/" + "brown_seed_self_training_index.tsv");
+            createBrownTrainingFiles();
+        }
+    }
+
+    private String[] inExecutionDirectory(String[] names, String extension) {
+        String[] paths = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            paths[i] = executionDirectory + "/" + names[i] + extension;
+        }
+        return paths;
+    }
+
+    /*
+     Regenerate only the derived files whose inputs changed since the last run, as recorded in the manifest.
+     */
     public void preprocess() {
-        createWsjSeedFiles();
-        copyWsjTrainingTestFilesIntoExecutionDir();
+        File manifestFile = new File(executionDirectory + "/" + "preprocess.manifest");
+        PreprocessManifest previous = PreprocessManifest.load(manifestFile);
+        PreprocessManifest current = new PreprocessManifest();
 
-        createBrownTrainingTestSplit();
-        createBrownTrainingFiles();
+        try {
+            // wsj_training / wsj_test copies
+            boolean wsjUnchanged = current.recordInput("wsj.seed", new File(wsjSeedSetFilePath), previous)
+                    & current.recordInput("wsj.test", new File(wsjTestSetFilePath), previous);
+            boolean wsjCopied = !wsjUnchanged || !allExist("wsj_training.conllx", "wsj_test.conllx");
+            if (wsjCopied) {
+                copyWsjStage();
+            } else {
+                System.out.println(currentTime() + "WSJ inputs unchanged, keeping wsj_training and wsj_test");
+            }
+
+            // wsj seed prefix index
+            current.put("wsj.sizes", wsjSeedSetSizes.toString());
+            if (wsjCopied || !current.sameAs(previous, "wsj.sizes") || !allExist("wsj_seed_self_training_index.tsv")) {
+                wsjSeedStage();
+            }
+
+            // brown split, genre by genre
+            Map<String, Integer> previousCounts = previous.getBrown90PercentCounts();
+            Map<String, Integer> previousTrainingCounts = readBrownGenreCounts(false);
+            Map<String, Integer> previousTestCounts = readBrownGenreCounts(true);
+            Set<String> changedGenres = new HashSet<>();
+            StringBuilder genreNames = new StringBuilder();
+            for (File genreDir : sortedGenreDirectories()) {
+                String genre = genreDir.getName();
+                genreNames.append(genre).append(' ');
+                File[] files = genreDir.listFiles();
+                if (files == null) {
+                    files = new File[0];
+                }
+                Arrays.sort(files);
+                boolean genreUnchanged = true;
+                StringBuilder fileNames = new StringBuilder();
+                for (File file : files) {
+                    genreUnchanged &= current.recordInput("brown." + genre + "/" + file.getName(), file, previous);
+                    fileNames.append(file.getName()).append(' ');
+                }
+                current.put("brown.files." + genre, fileNames.toString());
+                genreUnchanged &= current.sameAs(previous, "brown.files." + genre) && previousCounts.containsKey(genre)
+                        && allExist("brown_training_" + genre + ".conllx", brownTestPart(genre).getName());
+                if (genreUnchanged) {
+                    // A count given by the caller must yield the recorded split, clamped to the size of the genre
+                    Integer presetCount = brown90PercentCounts.get(genre);
+                    genreUnchanged = presetCount == null || previousTrainingCounts.containsKey(genre) && previousTestCounts.containsKey(genre)
+                            && Math.min(presetCount, previousTrainingCounts.get(genre) + previousTestCounts.get(genre)) == previousCounts.get(genre);
+                }
+                if (genreUnchanged) {
+                    brown90PercentCounts.put(genre, previousCounts.get(genre));
+                } else {
+                    changedGenres.add(genre);
+                }
+            }
+            current.put("brown.genres", genreNames.toString());
+
+            boolean brownSplit = !changedGenres.isEmpty() || !current.sameAs(previous, "brown.genres")
+                    || !allExist("brown_training.conllx", "brown_test.conllx", "brown_genres.tsv");
+            if (brownSplit) {
+                System.out.println(currentTime() + "Splitting changed brown genres " + changedGenres);
+                brownSplitStage(changedGenres);
+            } else {
+                System.out.println(currentTime() + "Brown inputs unchanged, reusing 90 Percent counts " + brown90PercentCounts);
+            }
+            current.putBrown90PercentCounts(brown90PercentCounts);
+
+            // brown self-training prefix index
+            current.put("brown.sizes", brownSelfTrainingSizes.toString());
+            if (brownSplit || !current.sameAs(previous, "brown.sizes") || !allExist("brown_seed_self_training_index.tsv")) {
+                brownTrainingStage();
+            }
+
+            current.save(manifestFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println(currentTime() + "Manifest unavailable, preprocessing everything");
+            copyWsjStage();
+            wsjSeedStage();
+            brownSplitStage(null);
+            brownTrainingStage();
+        }
+        try (RunReport.Stage stage = runReport.start("preprocess", "sentence_index")) {
+            stage.input(inExecutionDirectory(CANONICAL_CORPORA, ".conllx")).output(inExecutionDirectory(CANONICAL_CORPORA, ".conllx.idx"));
+            createSentenceIndexes();
+        }
+        if (writeLengthBuckets) {
+            try (RunReport.Stage stage = runReport.start("preprocess", "length_buckets")) {
+                String[] bucketed = new String[CANONICAL_CORPORA.length];
+                for (int i = 0; i < bucketed.length; i++) {
+                    bucketed[i] = LengthBuckets.bucketedPath(new File(executionDirectory + "/" + CANONICAL_CORPORA[i] + ".conllx")).getPath();
+                }
+                stage.input(inExecutionDirectory(CANONICAL_CORPORA, ".conllx")).output(bucketed);
+                createLengthBuckets();
+            }
+        }
+        if (writeBinaryCorpora) {
+            try (RunReport.Stage stage = runReport.start("preprocess", "binary_corpora")) {
+                stage.input(inExecutionDirectory(CANONICAL_CORPORA, ".conllx")).output(inExecutionDirectory(CANONICAL_CORPORA, ".conllb"));
+                createBinaryCorpora();
+            }
+        }
     }
 
     public static void main(String[] args) {
@@ -358,8 +745,8 @@ public class Preprocessor {
 
         Preprocessor preprocessor = new Preprocessor(wsjSeedPath, wsjTestPath, brownCorpusBasePath, executionDirectory);
 
-        preprocessor.createWsjSeedFiles();
         preprocessor.copyWsjTrainingTestFilesIntoExecutionDir();
+        preprocessor.createWsjSeedFiles();
 
         preprocessor.createBrownTrainingTestSplit();
         preprocessor.createBrownTrainingFiles();
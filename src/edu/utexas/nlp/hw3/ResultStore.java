@@ -0,0 +1,361 @@
+package edu.utexas.nlp.hw3;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Append-only store of the LAS results of all experiments, a single tab separated file with a header line, so sweeps
+ * can be analysed without scraping the logs.
+ *
+ * Every record holds the kind of score (such as IO_self_trained), the seed and test corpus, the seed and self-training
+ * sizes (-1 for the full set, 0 for none), the sample the incremental sets were drawn with, the settings the result
+ * depends on, the model and annotation paths, the LAS, the seconds the step took and the size the batch varied
+ * (seed_size or self_training_size, empty for single runs). A record is forced to disk when appended, and a last line
+ * cut short by a crash is ignored. On open the records are indexed by kind, seed and test corpus, ignoring case.
+ * Curves average the LAS of every x value over the samples, so k-fold runs give mean and standard deviation, and only
+ * take the records of batches varying x: both batches write IO_self_trained, holding the other size fixed.
+ *
+ * java edu.utexas.nlp.hw3.ResultStore <results.tsv> list [<column>=<value> ...]
+ * java edu.utexas.nlp.hw3.ResultStore <results.tsv> curve <kind> <seed_set> <test_set> <seed_size/self_training_size> [<column>=<value> ...]
+ * java edu.utexas.nlp.hw3.ResultStore <results.tsv> export <output_dir> [<column>=<value> ...]
+ */
+public class ResultStore {
+    public static final String[] COLUMNS = {"time", "kind", "seed_set", "test_set", "seed_size", "self_training_size",
+            "sample", "settings", "model", "annotations", "las", "seconds", "varied"};
+    private static final int LEGACY_COLUMNS = COLUMNS.length - 1; // Files written before the varied column
+
+    private final File file;
+    private final List<Record> records = new ArrayList<>();
+    private final Map<String, List<Record>> byExperiment = new HashMap<>(); // kind, seed and test corpus -> records
+
+    public static class Record {
+        public long time; // Milliseconds since the epoch
+        public String kind;
+        public String seedSet;
+        public String testSet;
+        public int seedSize;
+        public int selfTrainingSize;
+        public String sample = "";
+        public String settings = "";
+        public String model = "";
+        public String annotations = "";
+        public double las;
+        public double seconds;
+        public String varied = ""; // seed_size or self_training_size for batches
+
+        public String get(String column) {
+            switch (column) {
+                case "time": return String.valueOf(time);
+                case "kind": return kind;
+                case "seed_set": return seedSet;
+                case "test_set": return testSet;
+                case "seed_size": return String.valueOf(seedSize);
+                case "self_training_size": return String.valueOf(selfTrainingSize);
+                case "sample": return sample;
+                case "settings": return settings;
+                case "model": return model;
+                case "annotations": return annotations;
+                case "las": return String.valueOf(las);
+                case "seconds": return String.valueOf(seconds);
+                case "varied": return varied;
+                default: throw new IllegalArgumentException("Unknown result column " + column);
+            }
+        }
+
+        private static Record parse(String[] fields) {
+            Record record = new Record();
+            record.time = Long.parseLong(fields[0]);
+            record.kind = unescape(fields[1]);
+            record.seedSet = unescape(fields[2]);
+            record.testSet = unescape(fields[3]);
+            record.seedSize = Integer.parseInt(fields[4]);
+            record.selfTrainingSize = Integer.parseInt(fields[5]);
+            record.sample = unescape(fields[6]);
+            record.settings = unescape(fields[7]);
+            record.model = unescape(fields[8]);
+            record.annotations = unescape(fields[9]);
+            record.las = Double.parseDouble(fields[10]);
+            record.seconds = Double.parseDouble(fields[11]);
+            if (fields.length > LEGACY_COLUMNS) {
+                record.varied = unescape(fields[12]);
+            } else if (!record.kind.toLowerCase().startsWith("single")) {
+                // Only the vary_self_training_size batch records positive self-training sizes
+                record.varied = record.selfTrainingSize > 0 ? "self_training_size" : "seed_size";
+            }
+            return record;
+        }
+
+        private String format() {
+            StringBuilder line = new StringBuilder();
+            for (String column : COLUMNS) {
+                if (line.length() > 0) {
+                    line.append('\t');
+                }
+                line.append(escape(get(column)));
+            }
+            return line.append('\n').toString();
+        }
+    }
+
+    /*
+     Mean and spread of the LAS at one x value of a curve.
+     */
+    public static class Point {
+        public final String settings;
+        public final int x;
+        public final int count;
+        public final double meanLas;
+        public final double standardDeviation;
+
+        Point(String settings, int x, List<Double> las) {
+            this.settings = settings;
+            this.x = x;
+            this.count = las.size();
+            double sum = 0;
+            for (double value : las) {
+                sum += value;
+            }
+            this.meanLas = sum / count;
+            double squares = 0;
+            for (double value : las) {
+                squares += (value - meanLas) * (value - meanLas);
+            }
+            this.standardDeviation = count > 1 ? Math.sqrt(squares / (count - 1)) : 0;
+        }
+    }
+
+    public ResultStore(File file) throws IOException {
+        this.file = file;
+        if (!file.isFile()) {
+            return;
+        }
+        String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        int end = content.lastIndexOf('\n') + 1; // Anything after the last newline is an incomplete line
+        for (String line : content.substring(0, end).split("\n")) {
+            String[] fields = line.split("\t", -1);
+            if (fields.length != COLUMNS.length && fields.length != LEGACY_COLUMNS || fields[0].equals(COLUMNS[0])) {
+                continue; // Header or a damaged line
+            }
+            try {
+                index(Record.parse(fields));
+            } catch (NumberFormatException e) {
+                System.out.println(new Date().toString() + " Skipping damaged result line in " + file + ": " + line);
+            }
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    private void index(Record record) {
+        records.add(record);
+        byExperiment.computeIfAbsent(experimentKey(record.kind, record.seedSet, record.testSet), key -> new ArrayList<>()).add(record);
+    }
+
+    private static String experimentKey(String kind, String seedSet, String testSet) {
+        return kind.toLowerCase() + "\t" + seedSet.toLowerCase() + "\t" + testSet.toLowerCase();
+    }
+
+    /*
+     Append the record to the file and the index.
+     */
+    public synchronized void append(Record record) throws IOException {
+        String line = record.format();
+        if (!file.isFile() || file.length() == 0) {
+            line = String.join("\t", COLUMNS) + "\n" + line;
+        } else if (!endsWithNewline()) {
+            line = "\n" + line; // End the incomplete line of an interrupted append
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        index(record);
+    }
+
+    private boolean endsWithNewline() throws IOException {
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            input.seek(input.length() - 1);
+            return input.read() == '\n';
+        }
+    }
+
+    /*
+     Records whose columns have the given values, in the order they were appended.
+     */
+    public synchronized List<Record> select(Map<String, String> filter) {
+        Collection<Record> candidates = records;
+        if (filter.containsKey("kind") && filter.containsKey("seed_set") && filter.containsKey("test_set")) {
+            candidates = byExperiment.getOrDefault(experimentKey(filter.get("kind"), filter.get("seed_set"), filter.get("test_set")),
+                    Collections.emptyList());
+        }
+        List<Record> selected = new ArrayList<>();
+        for (Record record : candidates) {
+            if (matches(record, filter)) {
+                selected.add(record);
+            }
+        }
+        return selected;
+    }
+
+    private static boolean matches(Record record, Map<String, String> filter) {
+        for (Map.Entry<String, String> entry : filter.entrySet()) {
+            if (!record.get(entry.getKey()).equalsIgnoreCase(entry.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     LAS against x (seed_size or self_training_size) of one kind of score for the seed and test corpus, one point per
+     settings and x value, averaged over the samples. Of the batches only those which varied x count. Sorted by settings,
+     then x.
+     */
+    public synchronized List<Point> curve(String kind, String seedSet, String testSet, String x, Map<String, String> filter) {
+        Map<String, String> curveFilter = new HashMap<>(filter);
+        curveFilter.put("kind", kind);
+        curveFilter.put("seed_set", seedSet);
+        curveFilter.put("test_set", testSet);
+        TreeMap<String, TreeMap<Integer, List<Double>>> grouped = new TreeMap<>();
+        for (Record record : select(curveFilter)) {
+            if (!record.varied.isEmpty() && !record.varied.equals(x)) {
+                continue; // The other batch, with x held fixed
+            }
+            grouped.computeIfAbsent(record.settings, settings -> new TreeMap<>())
+                    .computeIfAbsent(Integer.parseInt(record.get(x)), size -> new ArrayList<>()).add(record.las);
+        }
+        List<Point> curve = new ArrayList<>();
+        for (Map.Entry<String, TreeMap<Integer, List<Double>>> settings : grouped.entrySet()) {
+            for (Map.Entry<Integer, List<Double>> point : settings.getValue().entrySet()) {
+                curve.add(new Point(settings.getKey(), point.getKey(), point.getValue()));
+            }
+        }
+        return curve;
+    }
+
+    /*
+     Write every curve of the selected records to <kind>_<seed_set>_<test_set>_<x>.tsv in directory. The x axis is the
+     size the batch varied, or for single runs the size which varies among the records. Returns the files written.
+     */
+    public synchronized List<File> export(File directory, Map<String, String> filter) throws IOException {
+        Map<String, List<Record>> experiments = new TreeMap<>();
+        for (Record record : select(filter)) {
+            experiments.computeIfAbsent(experimentKey(record.kind, record.seedSet, record.testSet) + "\t" + record.varied,
+                    key -> new ArrayList<>()).add(record);
+        }
+        List<File> written = new ArrayList<>();
+        for (List<Record> experiment : experiments.values()) {
+            Record first = experiment.get(0);
+            String x = first.varied;
+            if (x.isEmpty()) {
+                x = "self_training_size";
+                for (Record record : experiment) {
+                    if (record.seedSize != first.seedSize) {
+                        x = "seed_size";
+                        break;
+                    }
+                }
+            }
+            File curveFile = new File(directory, (first.kind + "_" + first.seedSet + "_" + first.testSet + "_" + x).replaceAll("[^A-Za-z0-9_.-]", "_") + ".tsv");
+            try (AtomicFile output = new AtomicFile(curveFile)) {
+                try (Writer writer = new BufferedWriter(new OutputStreamWriter(output.newOutputStream(), StandardCharsets.UTF_8))) {
+                    writeCurve(writer, x, curve(first.kind, first.seedSet, first.testSet, x, filter));
+                }
+                output.commit();
+            }
+            written.add(curveFile);
+        }
+        return written;
+    }
+
+    private static void writeCurve(Writer writer, String x, List<Point> curve) throws IOException {
+        writer.write(x + "\tmean_las\tstd_las\tcount\tsettings\n");
+        for (Point point : curve) {
+            writer.write(point.x + "\t" + point.meanLas + "\t" + point.standardDeviation + "\t" + point.count + "\t" + escape(point.settings) + "\n");
+        }
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+    }
+
+    private static String unescape(String value) {
+        StringBuilder unescaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                unescaped.append(next == 't' ? '\t' : next == 'n' ? '\n' : next);
+            } else {
+                unescaped.append(c);
+            }
+        }
+        return unescaped.toString();
+    }
+
+    private static Map<String, String> parseFilter(String[] args, int from) {
+        Map<String, String> filter = new HashMap<>();
+        for (int i = from; i < args.length; i++) {
+            int equals = args[i].indexOf('=');
+            if (equals < 0) {
+                throw new IllegalArgumentException("Expected <column>=<value> instead of " + args[i]);
+            }
+            filter.put(args[i].substring(0, equals), args[i].substring(equals + 1));
+        }
+        return filter;
+    }
+
+    private static void printUsage() {
+        System.out.println("java edu.utexas.nlp.hw3.ResultStore <results.tsv> list [<column>=<value> ...]");
+        System.out.println("java edu.utexas.nlp.hw3.ResultStore <results.tsv> curve <kind> <seed_set> <test_set> <seed_size/self_training_size> [<column>=<value> ...]");
+        System.out.println("java edu.utexas.nlp.hw3.ResultStore <results.tsv> export <output_dir> [<column>=<value> ...]");
+        System.out.println("Columns: " + String.join(" ", COLUMNS));
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            printUsage();
+            return;
+        }
+        ResultStore store = new ResultStore(new File(args[0]));
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        switch (args[1]) {
+            case "list":
+                out.write(String.join("\t", COLUMNS) + "\n");
+                for (Record record : store.select(parseFilter(args, 2))) {
+                    out.write(record.format());
+                }
+                break;
+            case "curve":
+                if (args.length < 6) {
+                    printUsage();
+                    return;
+                }
+                writeCurve(out, args[5], store.curve(args[2], args[3], args[4], args[5], parseFilter(args, 6)));
+                break;
+            case "export":
+                if (args.length < 3) {
+                    printUsage();
+                    return;
+                }
+                for (File curveFile : store.export(new File(args[2]), parseFilter(args, 3))) {
+                    out.write(curveFile.getPath() + "\n");
+                }
+                break;
+            default:
+                printUsage();
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,228 @@
+package edu.utexas.nlp.hw3;
+
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Timing and resource usage of every stage of a run, appended as CSV rows to a report file.
+ *
+ * A stage records its wall time, the CPU time and allocated bytes of the thread running it, the CPU time of the
+ * whole process and the GC time spent meanwhile (both shared with stages running concurrently), the number of
+ * sentences in its CoNLL-X inputs and the bytes of its inputs and outputs. Sentences are taken from the stage itself or
+ * from the sentence indexes of its inputs, never by reading the inputs again, and reported as -1 when neither knows
+ * them. While stages are running a progress line listing them is printed periodically.
+ */
+public class RunReport {
+    private static final String HEADER = "run_id,stage,name,thread,start,wall_ms,cpu_ms,process_cpu_ms,allocated_bytes,gc_ms,"
+            + "sentences,sentences_per_sec,bytes_read,bytes_written\n";
+
+    private final File file; // No file is written when null
+    private final String runId;
+    private final long runStart = System.currentTimeMillis();
+    private final Set<Stage> running = ConcurrentHashMap.newKeySet();
+    private int finished;
+    private ScheduledExecutorService progressPrinter;
+
+    public RunReport(File file) {
+        this.file = file;
+        this.runId = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date(runStart));
+    }
+
+    /*
+     Print a progress line every interval while any stage is running.
+     */
+    public synchronized void startProgress(long intervalSeconds) {
+        if (progressPrinter != null) {
+            return;
+        }
+        progressPrinter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        progressPrinter.scheduleAtFixedRate(this::printProgress, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    private void printProgress() {
+        List<Stage> stages = new ArrayList<>(running);
+        if (stages.isEmpty()) {
+            return;
+        }
+        long now = System.nanoTime();
+        StringBuilder line = new StringBuilder(new Date().toString()).append(" Progress: ");
+        synchronized (this) {
+            line.append(finished);
+        }
+        line.append(" stages finished in ").append((System.currentTimeMillis() - runStart) / 1000).append("s, running:");
+        for (Stage stage : stages) {
+            line.append(' ').append(stage.type).append(' ').append(new File(stage.name).getName())
+                    .append(" (").append((now - stage.startNanos) / 1_000_000_000L).append("s)");
+        }
+        System.out.println(line);
+    }
+
+    public Stage start(String type, String name) {
+        Stage stage = new Stage(type, name);
+        running.add(stage);
+        return stage;
+    }
+
+    private synchronized void write(Stage stage, String row) {
+        finished++;
+        if (file == null) {
+            return;
+        }
+        boolean newFile = !file.isFile() || file.length() == 0;
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8)) {
+            if (newFile) {
+                writer.write(HEADER);
+            }
+            writer.write(row);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println(new Date().toString() + " Could not report stage " + stage.type + " " + stage.name);
+        }
+    }
+
+    /*
+     One measured stage. Declare its inputs and outputs, and close it when the work is done.
+     */
+    public class Stage implements AutoCloseable {
+        private final String type;
+        private final String name;
+        private final long startMillis = System.currentTimeMillis();
+        private final long startNanos = System.nanoTime();
+        private final long startCpu = threadCpuTime();
+        private final long startProcessCpu = processCpuTime();
+        private final long startAllocated = threadAllocatedBytes();
+        private final long startGc = gcTime();
+        private final List<String> inputs = new ArrayList<>();
+        private final List<String> outputs = new ArrayList<>();
+        private long sentences = -1; // Taken from the inputs' sentence indexes unless given
+
+        private Stage(String type, String name) {
+            this.type = type;
+            this.name = name;
+        }
+
+        public Stage input(String... paths) {
+            inputs.addAll(Arrays.asList(paths));
+            return this;
+        }
+
+        public Stage output(String... paths) {
+            outputs.addAll(Arrays.asList(paths));
+            return this;
+        }
+
+        public Stage sentences(long sentences) {
+            this.sentences = sentences;
+            return this;
+        }
+
+        @Override
+        public void close() {
+            running.remove(this);
+            long wallNanos = System.nanoTime() - startNanos;
+            long cpu = threadCpuTime() - startCpu;
+            long processCpu = processCpuTime() - startProcessCpu;
+            long allocated = threadAllocatedBytes() - startAllocated;
+            long gc = gcTime() - startGc;
+            if (sentences < 0) {
+                sentences = countSentences(inputs);
+            }
+            double seconds = wallNanos / 1e9;
+            String row = runId + ',' + csv(type) + ',' + csv(name) + ',' + csv(Thread.currentThread().getName()) + ','
+                    + new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS").format(new Date(startMillis)) + ','
+                    + wallNanos / 1_000_000 + ',' + cpu / 1_000_000 + ',' + processCpu / 1_000_000 + ',' + allocated + ','
+                    + gc + ',' + sentences + ',' + (sentences < 0 ? "-1" : seconds > 0 ? String.format("%.1f", sentences / seconds) : "0") + ','
+                    + totalLength(inputs) + ',' + totalLength(outputs) + '\n';
+            write(this, row);
+        }
+    }
+
+    private static String csv(String value) {
+        if (value.contains(",") || value.contains("\"") || value.contains("\n")) {
+            return '"' + value.replace("\"", "\"\"") + '"';
+        }
+        return value;
+    }
+
+    private static long totalLength(List<String> paths) {
+        long total = 0;
+        for (String path : paths) {
+            File file = new File(path);
+            if (file.isFile()) {
+                total += file.length();
+            } else if (file.isDirectory()) {
+                File[] children = file.listFiles();
+                for (File child : children == null ? new File[0] : children) {
+                    total += child.length();
+                }
+            }
+        }
+        return total;
+    }
+
+    /*
+     Sentences in the CoNLL-X files among the paths, taken from their sentence indexes, or -1 if one of them has no
+     current index.
+     */
+    private static long countSentences(List<String> paths) {
+        long total = 0;
+        for (String path : paths) {
+            if (!path.endsWith(".conllx") || !new File(path).isFile()) {
+                continue;
+            }
+            try {
+                SentenceIndex sentenceIndex = SentenceIndex.openIfCurrent(new File(path));
+                if (sentenceIndex == null) {
+                    return -1;
+                }
+                total += sentenceIndex.sentenceCount();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return -1;
+            }
+        }
+        return total;
+    }
+
+    private static long threadCpuTime() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : 0;
+    }
+
+    private static long threadAllocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+            if (sunThreads.isThreadAllocatedMemorySupported() && sunThreads.isThreadAllocatedMemoryEnabled()) {
+                return sunThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return 0;
+    }
+
+    private static long processCpuTime() {
+        java.lang.management.OperatingSystemMXBean system = ManagementFactory.getOperatingSystemMXBean();
+        if (system instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) system).getProcessCpuTime();
+        }
+        return 0;
+    }
+
+    private static long gcTime() {
+        long total = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, collector.getCollectionTime());
+        }
+        return total;
+    }
+}
@@ -0,0 +1,286 @@
+package edu.utexas.nlp.hw3;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Index of seeded, stratified random samples of a few canonical CoNLL-X files, the alternative to the prefixes of
+ * PrefixIndex.
+ *
+ * Every sentence gets a priority from a hash of the seed and its position, and the sentences are put in one pick
+ * order: each stratum in order of priority, and the strata interleaved so that every prefix of the pick order takes
+ * from each stratum in proportion to its size. The sample of size N is the first N sentences of the pick order, so
+ * the samples of all sizes come from the same order and larger samples contain the smaller ones. A stratum is a file
+ * (a brown genre) or one of a number of equal contiguous blocks of a file (the sections of wsj_00_22, which are not
+ * marked in the file). Only the sentence counts of the files are needed to build the order, and samples are copied
+ * out as byte ranges found in the files' sentence indexes.
+ *
+ * For k-fold variants the sentences are dealt round-robin into k folds in pick order, so the folds differ in size by
+ * at most one sentence and are stratified like every prefix; variant j leaves out fold j and keeps the pick order of
+ * the rest, so the variants need no further pass over the corpus either.
+ */
+public class SampleIndex {
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    private final List<File> files;
+    private final int[] sentenceCounts; // sentences of each file
+    private final int strataPerFile;
+    private final long seed;
+    private final int[] pickOrder; // global sentence numbers, in the order samples take them
+
+    private SampleIndex(List<File> files, int[] sentenceCounts, int strataPerFile, long seed, int[] pickOrder) {
+        this.files = files;
+        this.sentenceCounts = sentenceCounts;
+        this.strataPerFile = strataPerFile;
+        this.seed = seed;
+        this.pickOrder = pickOrder;
+    }
+
+    /*
+     Build the index from the sentence counts of the canonical files, splitting each file into strataPerFile strata.
+     */
+    public static SampleIndex build(List<File> files, int strataPerFile, long seed) throws IOException {
+        int[] sentenceCounts = new int[files.size()];
+        for (int i = 0; i < files.size(); i++) {
+            sentenceCounts[i] = SentenceIndex.of(files.get(i)).sentenceCount();
+        }
+        return new SampleIndex(files, sentenceCounts, strataPerFile, seed, pickOrder(sentenceCounts, strataPerFile, seed));
+    }
+
+    /*
+     Priority of the sentence as a non-negative long, a SplitMix64 hash of the seed and its global sentence number.
+     */
+    private static long priority(long seed, int sentence) {
+        long z = seed + (sentence + 1) * GOLDEN_GAMMA;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z = z ^ (z >>> 31);
+        return z >>> 1;
+    }
+
+    private static int[] pickOrder(int[] sentenceCounts, int strataPerFile, long seed) {
+        // Global sentence numbers of every stratum, sorted by priority
+        List<int[]> strata = new ArrayList<>();
+        int first = 0;
+        for (int count : sentenceCounts) {
+            for (int s = 0; s < strataPerFile; s++) {
+                int from = first + (int) ((long) count * s / strataPerFile);
+                int to = first + (int) ((long) count * (s + 1) / strataPerFile);
+                if (to == from) {
+                    continue;
+                }
+                // Sort the priorities with the offset of their sentence in the low bits, ties going to the earlier one
+                int offsetBits = 32 - Integer.numberOfLeadingZeros(to - from - 1);
+                long offsetMask = (1L << offsetBits) - 1;
+                long[] keys = new long[to - from];
+                for (int k = from; k < to; k++) {
+                    keys[k - from] = priority(seed, k) & ~offsetMask | (k - from);
+                }
+                Arrays.sort(keys);
+                int[] sorted = new int[keys.length];
+                for (int k = 0; k < sorted.length; k++) {
+                    sorted[k] = from + (int) (keys[k] & offsetMask);
+                }
+                strata.add(sorted);
+            }
+            first += count;
+        }
+
+        // Interleave the strata: the next pick comes from the stratum furthest behind its share (Sainte-Lague),
+        // ties going to the earlier stratum
+        int[] order = new int[first];
+        int[] taken = new int[strata.size()];
+        PriorityQueue<Integer> next = new PriorityQueue<>(Math.max(1, strata.size()), Comparator
+                .comparingDouble((Integer s) -> (taken[s] + 0.5) / strata.get(s).length).thenComparingInt(s -> s));
+        for (int s = 0; s < strata.size(); s++) {
+            next.add(s);
+        }
+        for (int i = 0; i < order.length; i++) {
+            int s = next.poll();
+            order[i] = strata.get(s)[taken[s]++];
+            if (taken[s] < strata.get(s).length) {
+                next.add(s);
+            }
+        }
+        return order;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public int getStrataPerFile() {
+        return strataPerFile;
+    }
+
+    public List<File> getFiles() {
+        return Collections.unmodifiableList(files);
+    }
+
+    /*
+     Number of sentences of variant fold of folds (all sentences when folds is 0).
+     */
+    public int available(int fold, int folds) {
+        if (folds <= 0) {
+            return pickOrder.length;
+        }
+        int available = 0;
+        for (int i = 0; i < pickOrder.length; i++) {
+            if (foldOf(i, folds) != fold) {
+                available++;
+            }
+        }
+        return available;
+    }
+
+    public boolean contains(int size, int fold, int folds) {
+        return size > 0 && size <= available(fold, folds);
+    }
+
+    /*
+     Fold of the sentence at the given position of the pick order.
+     */
+    private static int foldOf(int position, int folds) {
+        return position % folds;
+    }
+
+    /*
+     Which sentences of each file are in the sample of the given size of variant fold of folds.
+     */
+    private boolean[][] selection(int size, int fold, int folds) {
+        boolean[][] keep = new boolean[files.size()][];
+        int[] firstSentence = new int[files.size() + 1];
+        for (int i = 0; i < files.size(); i++) {
+            keep[i] = new boolean[sentenceCounts[i]];
+            firstSentence[i + 1] = firstSentence[i] + sentenceCounts[i];
+        }
+        int selected = 0;
+        for (int i = 0; i < pickOrder.length && selected < size; i++) {
+            if (folds > 0 && foldOf(i, folds) == fold) {
+                continue;
+            }
+            int sentence = pickOrder[i];
+            int file = Arrays.binarySearch(firstSentence, sentence);
+            file = file >= 0 ? file : -file - 2;
+            while (sentenceCounts[file] == 0 || sentence >= firstSentence[file + 1]) { // Skip empty files
+                file++;
+            }
+            keep[file][sentence - firstSentence[file]] = true;
+            selected++;
+        }
+        return keep;
+    }
+
+    /*
+     Write the sample of the given size of variant fold of folds (folds 0 for the whole corpus) to destination, in
+     corpus order, unless it is already there.
+     */
+    public void materialize(int size, int fold, int folds, File destination) throws IOException {
+        if (!contains(size, fold, folds)) {
+            throw new IllegalArgumentException("No sample of size " + size + " in the index");
+        }
+        if (destination.isFile() && destination.lastModified() >= newestFileModification()) {
+            return; // Names of samples are unique per seed, fold and size
+        }
+        boolean[][] keep = selection(size, fold, folds);
+        try (AtomicFile file = new AtomicFile(destination)) {
+            try (FileChannel out = file.newChannel()) {
+                for (int i = 0; i < files.size(); i++) {
+                    SentenceIndex sentenceIndex = SentenceIndex.of(files.get(i));
+                    try (FileChannel in = FileChannel.open(files.get(i).toPath(), StandardOpenOption.READ)) {
+                        // Copy every run of consecutive selected sentences as one range
+                        int runStart = -1;
+                        for (int k = 0; k <= keep[i].length; k++) {
+                            boolean selected = k < keep[i].length && keep[i][k];
+                            if (selected && runStart < 0) {
+                                runStart = k;
+                            } else if (!selected && runStart >= 0) {
+                                sentenceIndex.transferTo(in, runStart, k, out);
+                                runStart = -1;
+                            }
+                        }
+                    }
+                }
+            }
+            file.commit();
+        }
+    }
+
+    private long newestFileModification() {
+        long newest = 0;
+        for (File file : files) {
+            newest = Math.max(newest, file.lastModified());
+        }
+        return newest;
+    }
+
+    /*
+     Whether the index was built from the current versions of its files with the given seed and strata.
+     */
+    public boolean isCurrent(List<File> files, int strataPerFile, long seed, long indexModification) {
+        return this.files.equals(files) && this.strataPerFile == strataPerFile && this.seed == seed
+                && indexModification >= newestFileModification();
+    }
+
+    /*
+     Format: first line lists the canonical files separated by tabs, the second the seed, the strata per file and the
+     sentence count of every file, then the pick order with one global sentence number per line. The sample of size N
+     is made of the first N sentence numbers.
+     */
+    public void save(File indexFile) throws IOException {
+        try (AtomicFile output = new AtomicFile(indexFile)) {
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(output.newOutputStream(), StandardCharsets.UTF_8))) {
+                StringBuilder header = new StringBuilder();
+                for (File file : files) {
+                    if (header.length() > 0) {
+                        header.append('\t');
+                    }
+                    header.append(file.getPath());
+                }
+                writer.write(header.append('\n').toString());
+                StringBuilder counts = new StringBuilder().append(seed).append('\t').append(strataPerFile);
+                for (int count : sentenceCounts) {
+                    counts.append('\t').append(count);
+                }
+                writer.write(counts.append('\n').toString());
+                for (int sentence : pickOrder) {
+                    writer.write(sentence + "\n");
+                }
+            }
+            output.commit();
+        }
+    }
+
+    public static SampleIndex load(File indexFile) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), StandardCharsets.UTF_8))) {
+            String header = reader.readLine();
+            String counts = reader.readLine();
+            if (header == null || counts == null) {
+                throw new IOException("Incomplete sample index " + indexFile);
+            }
+            List<File> files = new ArrayList<>();
+            for (String path : header.split("\t")) {
+                files.add(new File(path));
+            }
+            String[] fields = counts.split("\t");
+            int[] sentenceCounts = new int[files.size()];
+            int total = 0;
+            for (int i = 0; i < sentenceCounts.length; i++) {
+                sentenceCounts[i] = Integer.parseInt(fields[i + 2]);
+                total += sentenceCounts[i];
+            }
+            int[] pickOrder = new int[total];
+            for (int i = 0; i < total; i++) {
+                String line = reader.readLine();
+                if (line == null) {
+                    throw new IOException("Incomplete sample index " + indexFile);
+                }
+                pickOrder[i] = Integer.parseInt(line);
+            }
+            return new SampleIndex(files, sentenceCounts, Integer.parseInt(fields[1]), Long.parseLong(fields[0]), pickOrder);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package edu.utexas.nlp.hw3;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Picks the automatically annotated sentences worth retraining on.
+ *
+ * Every sentence gets a confidence score: the agreement of its annotation with the annotation of a second,
+ * differently trained model (the LAS of one against the other), or its inverse length since short sentences are
+ * parsed more reliably. Sentences scoring at least the threshold are kept, and of those only the top k. The kept
+ * sentences are written in one streaming pass, in their original order.
+ */
+public class SelfTrainingSelector {
+    private final int topK; // Keep every sentence passing the threshold when <= 0
+    private final double threshold;
+
+    public SelfTrainingSelector(int topK, double threshold) {
+        this.topK = topK;
+        this.threshold = threshold;
+    }
+
+    /*
+     Fraction of the scored tokens of every sentence on which both annotations agree on head and label.
+     */
+    public static float[] agreementScores(File annotations, File referenceAnnotations) throws IOException {
+        ConllEvaluator evaluator = new ConllEvaluator();
+        evaluator.recordSentenceScores();
+        evaluator.evaluate(referenceAnnotations, annotations);
+        return evaluator.getSentenceScores();
+    }
+
+    /*
+     One over the number of tokens of every sentence.
+     */
+    public static float[] lengthScores(File annotations) throws IOException {
+        float[] scores = new float[1024];
+        int count = 0;
+        try (ConllxSentenceReader reader = new ConllxSentenceReader(annotations)) {
+            while (reader.next()) {
+                if (count == scores.length) {
+                    scores = Arrays.copyOf(scores, scores.length * 2);
+                }
+                scores[count++] = 1.0f / reader.tokenCount();
+            }
+        }
+        return Arrays.copyOf(scores, count);
+    }
+
+    /*
+     Write the selected sentences of annotations to destination and return how many were kept.
+     */
+    public int write(File annotations, float[] scores, File destination) throws IOException {
+        return ConllxFiles.writeSentences(annotations, select(scores), destination);
+    }
+
+    /*
+     Sentences passing the threshold and, if there are more than k of them, ranking among the k best. Ties at the cut
+     off are resolved in favour of the earlier sentences.
+     */
+    private boolean[] select(float[] scores) {
+        int eligible = 0;
+        for (float score : scores) {
+            if (score >= threshold) {
+                eligible++;
+            }
+        }
+        float cutoff = Float.NEGATIVE_INFINITY;
+        int tiesAllowed = Integer.MAX_VALUE;
+        if (topK > 0 && eligible > topK) {
+            float[] sorted = new float[eligible];
+            int i = 0;
+            for (float score : scores) {
+                if (score >= threshold) {
+                    sorted[i++] = score;
+                }
+            }
+            Arrays.sort(sorted);
+            cutoff = sorted[eligible - topK];
+            int above = 0;
+            for (float score : sorted) {
+                if (score > cutoff) {
+                    above++;
+                }
+            }
+            tiesAllowed = topK - above;
+        }
+
+        boolean[] keep = new boolean[scores.length];
+        for (int i = 0; i < scores.length; i++) {
+            float score = scores[i];
+            if (score < threshold || score < cutoff) {
+                continue;
+            }
+            if (score == cutoff) {
+                if (tiesAllowed == 0) {
+                    continue;
+                }
+                tiesAllowed--;
+            }
+            keep[i] = true;
+        }
+        return keep;
+    }
+}
@@ -0,0 +1,284 @@
+package edu.utexas.nlp.hw3;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Merges a seed file with automatically annotated target sentences, dropping the target sentences whose words repeat
+ * a sentence seen before, in the seed or earlier in the target.
+ *
+ * A sentence is compared by its word sequence (the FORM column), so an annotated copy of a seed sentence is dropped
+ * whatever its annotation. Exact duplicates are found by a 64-bit fingerprint of the word sequence kept in a
+ * LongOpenHashSet. Near-duplicates, if a Jaccard threshold is given, are found by MinHash over word bigrams: every
+ * sentence gets a signature of SIGNATURE_SIZE minimum hashes, the signatures are split into bands for locality
+ * sensitive hashing, and a target sentence sharing a band with an earlier sentence is dropped if their signatures
+ * agree on at least the threshold's share of the hashes. The seed sentences are always kept. Sentences are never
+ * decoded, all hashing works on the bytes.
+ */
+public class SentenceDeduplicator {
+    private static final int SIGNATURE_SIZE = 64;
+    private static final int[] ROWS_PER_BAND = {16, 8, 4, 2};
+    private static final long FNV_OFFSET = 0xCBF29CE484222325L;
+    private static final long FNV_PRIME = 0x100000001B3L;
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+    private static final int NEW = 0;
+    private static final int EXACT_DUPLICATE = 1;
+    private static final int NEAR_DUPLICATE = 2;
+
+    private final double nearDuplicateThreshold; // Jaccard similarity, near-duplicates are kept when <= 0
+    private final int rowsPerBand;
+
+    private final LongOpenHashSet fingerprints = new LongOpenHashSet(1 << 16);
+    private long[] wordHashes = new long[256];
+    private final int[] signature = new int[SIGNATURE_SIZE];
+    private int[] signatures = new int[0]; // SIGNATURE_SIZE minimum hashes of every registered sentence
+    private int sentences;
+    private BandTable bands;
+
+    /*
+     Merge statistics of one call to merge.
+     */
+    public static class Result {
+        public int seedSentences;
+        public int targetSentences;
+        public int exactDuplicates;
+        public int nearDuplicates;
+
+        public int keptTargetSentences() {
+            return targetSentences - exactDuplicates - nearDuplicates;
+        }
+    }
+
+    public SentenceDeduplicator(double nearDuplicateThreshold) {
+        this.nearDuplicateThreshold = nearDuplicateThreshold;
+        this.rowsPerBand = rowsPerBand(nearDuplicateThreshold);
+    }
+
+    /*
+     The most rows per band whose LSH threshold (1 / bands) ^ (1 / rows) does not exceed the Jaccard threshold, so
+     pairs at the threshold are very likely to share a band while far fewer dissimilar pairs do.
+     */
+    private static int rowsPerBand(double threshold) {
+        for (int rows : ROWS_PER_BAND) {
+            if (Math.pow(rows / (double) SIGNATURE_SIZE, 1.0 / rows) <= threshold) {
+                return rows;
+            }
+        }
+        return 1;
+    }
+
+    /*
+     Write the seed sentences followed by the target sentences which are neither exact nor, if enabled, near
+     duplicates, each followed by one empty line.
+     */
+    public Result merge(File seed, File target, File destination) throws IOException {
+        Result result = new Result();
+        fingerprints.clear();
+        sentences = 0;
+        bands = nearDuplicateThreshold > 0 ? new BandTable() : null;
+
+        try (AtomicFile file = new AtomicFile(destination)) {
+            try (OutputStream outputStream = new BufferedOutputStream(file.newOutputStream(), OUTPUT_BUFFER_SIZE)) {
+                try (ConllxSentenceReader reader = new ConllxSentenceReader(seed)) {
+                    while (reader.next()) {
+                        register(reader, false);
+                        reader.writeTo(outputStream);
+                        result.seedSentences++;
+                    }
+                }
+                try (ConllxSentenceReader reader = new ConllxSentenceReader(target)) {
+                    while (reader.next()) {
+                        result.targetSentences++;
+                        int status = register(reader, true);
+                        if (status == NEW) {
+                            reader.writeTo(outputStream);
+                        } else if (status == EXACT_DUPLICATE) {
+                            result.exactDuplicates++;
+                        } else {
+                            result.nearDuplicates++;
+                        }
+                    }
+                }
+            }
+            file.commit();
+        }
+        return result;
+    }
+
+    /*
+     Remember the current sentence of the reader. With check set, return whether it duplicates a sentence remembered
+     before, without remembering it if so.
+     */
+    private int register(ConllxSentenceReader reader, boolean check) {
+        int words = hashWords(reader.buffer(), reader.bufferStart(), reader.bufferStart() + reader.length());
+        long fingerprint = FNV_OFFSET;
+        for (int i = 0; i < words; i++) {
+            fingerprint = (fingerprint ^ wordHashes[i]) * FNV_PRIME;
+        }
+        if (!fingerprints.add(mix(fingerprint ^ words))) {
+            return check ? EXACT_DUPLICATE : NEW; // Its signature is already there
+        }
+        if (bands == null) {
+            return NEW;
+        }
+
+        Arrays.fill(signature, Integer.MAX_VALUE);
+        long previous = FNV_OFFSET; // Start of sentence marker
+        for (int i = 0; i <= words; i++) {
+            long current = i < words ? wordHashes[i] : FNV_PRIME; // End of sentence marker
+            long bigram = mix(previous * 31 + current);
+            for (int h = 0; h < SIGNATURE_SIZE; h++) {
+                int value = (int) (mix(bigram + (h + 1) * GOLDEN_GAMMA) >>> 33);
+                if (value < signature[h]) {
+                    signature[h] = value;
+                }
+            }
+            previous = current;
+        }
+
+        long[] bandKeys = new long[SIGNATURE_SIZE / rowsPerBand];
+        for (int band = 0; band < bandKeys.length; band++) {
+            long key = band;
+            for (int row = band * rowsPerBand; row < (band + 1) * rowsPerBand; row++) {
+                key = mix(key * 31 + signature[row]);
+            }
+            bandKeys[band] = key;
+        }
+        if (check) {
+            int matches = (int) Math.ceil(nearDuplicateThreshold * SIGNATURE_SIZE);
+            for (long key : bandKeys) {
+                for (int entry = bands.first(key); entry >= 0; entry = bands.next(entry, key)) {
+                    if (agreement(bands.sentence(entry)) >= matches) {
+                        return NEAR_DUPLICATE;
+                    }
+                }
+            }
+        }
+
+        if ((sentences + 1) * SIGNATURE_SIZE > signatures.length) {
+            signatures = Arrays.copyOf(signatures, Math.max(SIGNATURE_SIZE * 1024, signatures.length * 2));
+        }
+        System.arraycopy(signature, 0, signatures, sentences * SIGNATURE_SIZE, SIGNATURE_SIZE);
+        for (long key : bandKeys) {
+            bands.add(key, sentences);
+        }
+        sentences++;
+        return NEW;
+    }
+
+    private int agreement(int sentence) {
+        int agreeing = 0;
+        for (int h = 0; h < SIGNATURE_SIZE; h++) {
+            if (signatures[sentence * SIGNATURE_SIZE + h] == signature[h]) {
+                agreeing++;
+            }
+        }
+        return agreeing;
+    }
+
+    /*
+     Hash the FORM column of every token line in buffer[from, to) into wordHashes and return the number of words.
+     */
+    private int hashWords(byte[] buffer, int from, int to) {
+        int words = 0;
+        int lineStart = from;
+        while (lineStart < to) {
+            int field = 0;
+            long hash = FNV_OFFSET;
+            int i = lineStart;
+            for (; i < to && buffer[i] != '\n'; i++) {
+                byte b = buffer[i];
+                if (b == '\t') {
+                    field++;
+                } else if (field == 1 && b != '\r') {
+                    hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+                }
+            }
+            if (i > lineStart) {
+                if (words == wordHashes.length) {
+                    wordHashes = Arrays.copyOf(wordHashes, words * 2);
+                }
+                wordHashes[words++] = mix(hash);
+            }
+            lineStart = i + 1;
+        }
+        return words;
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /*
+     The sentences registered under every band key, as chains through primitive arrays. Band keys include the band.
+     */
+    private static class BandTable {
+        private int[] heads = new int[1024]; // key bucket -> latest entry, -1 if none
+        private long[] entryKeys = new long[1024];
+        private int[] entrySentences = new int[1024];
+        private int[] entryNext = new int[1024]; // Next entry of the same bucket
+        private int entries;
+
+        BandTable() {
+            Arrays.fill(heads, -1);
+        }
+
+        private static int bucket(long key, int capacity) {
+            return (int) (key & (capacity - 1));
+        }
+
+        void add(long key, int sentence) {
+            if (entries == entryKeys.length) {
+                entryKeys = Arrays.copyOf(entryKeys, entries * 2);
+                entrySentences = Arrays.copyOf(entrySentences, entries * 2);
+                entryNext = Arrays.copyOf(entryNext, entries * 2);
+            }
+            if (entries >= heads.length) {
+                rehash(heads.length * 2);
+            }
+            int bucket = bucket(key, heads.length);
+            entryKeys[entries] = key;
+            entrySentences[entries] = sentence;
+            entryNext[entries] = heads[bucket];
+            heads[bucket] = entries++;
+        }
+
+        private void rehash(int capacity) {
+            heads = new int[capacity];
+            Arrays.fill(heads, -1);
+            for (int entry = 0; entry < entries; entry++) {
+                int bucket = bucket(entryKeys[entry], capacity);
+                entryNext[entry] = heads[bucket];
+                heads[bucket] = entry;
+            }
+        }
+
+        /*
+         First entry with the key, or -1.
+         */
+        int first(long key) {
+            return matching(heads[bucket(key, heads.length)], key);
+        }
+
+        /*
+         Entry with the key after the given one, or -1.
+         */
+        int next(int entry, long key) {
+            return matching(entryNext[entry], key);
+        }
+
+        int sentence(int entry) {
+            return entrySentences[entry];
+        }
+
+        private int matching(int entry, long key) {
+            while (entry >= 0 && entryKeys[entry] != key) {
+                entry = entryNext[entry];
+            }
+            return entry;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package edu.utexas.nlp.hw3;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Start offset, byte length and token count of every sentence of a CoNLL-X file, kept in a sidecar <file>.idx which
+ * is memory-mapped when read, so sentence counts, random access to a sentence and copying a range of sentences need
+ * no scan of the file.
+ *
+ * Sidecar format, big endian: magic, version, sentence count, flags (1 if the last sentence ends with a newline), the
+ * length and modification time of the indexed file, then the sentence starts as longs followed by the sentence
+ * lengths and the token counts as ints. A sidecar whose recorded length or modification time differ from the file is
+ * stale and gets rebuilt. A sentence runs from its first byte to just after the newline of its last line, the same
+ * range ConllxSentenceReader hands out.
+ */
+public class SentenceIndex {
+    private static final int MAGIC = 0x43534958; // "CSIX"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    private static final int FLAG_LAST_ENDS_WITH_NEWLINE = 1;
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+
+    private final File file;
+    private final int sentenceCount;
+    private final boolean lastEndsWithNewline;
+    private final LongBuffer starts;
+    private final IntBuffer lengths;
+    private final IntBuffer tokenCounts;
+
+    private SentenceIndex(File file, int sentenceCount, boolean lastEndsWithNewline, LongBuffer starts, IntBuffer lengths, IntBuffer tokenCounts) {
+        this.file = file;
+        this.sentenceCount = sentenceCount;
+        this.lastEndsWithNewline = lastEndsWithNewline;
+        this.starts = starts;
+        this.lengths = lengths;
+        this.tokenCounts = tokenCounts;
+    }
+
+    public static File sidecar(File file) {
+        return new File(file.getPath() + ".idx");
+    }
+
+    /*
+     The index of the file, mapped from its sidecar if that is current, otherwise built with one pass over the file
+     and saved. If the sidecar cannot be written the index is only kept in memory.
+     */
+    public static SentenceIndex of(File file) throws IOException {
+        SentenceIndex index = openIfCurrent(file);
+        if (index != null) {
+            return index;
+        }
+        index = build(file);
+        try {
+            write(file, index.startArray(), index.lengthArray(), index.tokenCountArray(), 0, index.sentenceCount, 0, index.lastEndsWithNewline);
+        } catch (IOException e) {
+            System.out.println(new Date().toString() + " Could not write sentence index " + sidecar(file) + ": " + e.getMessage());
+        }
+        return index;
+    }
+
+    /*
+     The index mapped from the sidecar of the file, or null if there is no current sidecar.
+     */
+    public static SentenceIndex openIfCurrent(File file) throws IOException {
+        File sidecar = sidecar(file);
+        if (!sidecar.isFile() || sidecar.length() < HEADER_BYTES) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(sidecar.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int sentenceCount = mapped.getInt(8);
+            if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION || mapped.getLong(16) != file.length()
+                    || mapped.getLong(24) != file.lastModified() || channel.size() != HEADER_BYTES + 16L * sentenceCount) {
+                return null;
+            }
+            boolean lastEndsWithNewline = (mapped.getInt(12) & FLAG_LAST_ENDS_WITH_NEWLINE) != 0;
+            return new SentenceIndex(file, sentenceCount, lastEndsWithNewline,
+                    slice(mapped, HEADER_BYTES).asLongBuffer(),
+                    slice(mapped, HEADER_BYTES + 8L * sentenceCount).asIntBuffer(),
+                    slice(mapped, HEADER_BYTES + 12L * sentenceCount).asIntBuffer());
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, long position) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position((int) position);
+        return duplicate.slice();
+    }
+
+    /*
+     Index the file with one pass, without writing the sidecar.
+     */
+    public static SentenceIndex build(File file) throws IOException {
+        long[] starts = new long[1024];
+        int[] lengths = new int[1024];
+        int[] tokenCounts = new int[1024];
+        int count = 0;
+        boolean lastEndsWithNewline = true;
+        try (ConllxSentenceReader reader = new ConllxSentenceReader(file)) {
+            while (reader.next()) {
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, count * 2);
+                    lengths = Arrays.copyOf(lengths, count * 2);
+                    tokenCounts = Arrays.copyOf(tokenCounts, count * 2);
+                }
+                starts[count] = reader.start();
+                lengths[count] = reader.length();
+                tokenCounts[count] = reader.tokenCount();
+                lastEndsWithNewline = reader.buffer()[reader.bufferStart() + reader.length() - 1] == '\n';
+                count++;
+            }
+        }
+        return new SentenceIndex(file, count, lastEndsWithNewline, LongBuffer.wrap(starts, 0, count).slice(),
+                IntBuffer.wrap(lengths, 0, count).slice(), IntBuffer.wrap(tokenCounts, 0, count).slice());
+    }
+
+    /*
+     Write the sidecar of file for the sentences [from, to) of the given arrays, with shift added to every start. Used
+     by writers which already know where they put each sentence, so their output never has to be scanned.
+     */
+    public static void write(File file, long[] starts, int[] lengths, int[] tokenCounts, int from, int to, long shift,
+                             boolean lastEndsWithNewline) throws IOException {
+        try (AtomicFile sidecar = new AtomicFile(sidecar(file))) {
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(sidecar.newOutputStream(), OUTPUT_BUFFER_SIZE))) {
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                output.writeInt(to - from);
+                output.writeInt(lastEndsWithNewline ? FLAG_LAST_ENDS_WITH_NEWLINE : 0);
+                output.writeLong(file.length());
+                output.writeLong(file.lastModified());
+                for (int k = from; k < to; k++) {
+                    output.writeLong(starts[k] + shift);
+                }
+                for (int k = from; k < to; k++) {
+                    output.writeInt(lengths[k]);
+                }
+                for (int k = from; k < to; k++) {
+                    output.writeInt(tokenCounts[k]);
+                }
+            }
+            sidecar.commit();
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int sentenceCount() {
+        return sentenceCount;
+    }
+
+    public long start(int k) {
+        return starts.get(k);
+    }
+
+    /*
+     Offset just after the last line of sentence k.
+     */
+    public long end(int k) {
+        return starts.get(k) + lengths.get(k);
+    }
+
+    public int tokenCount(int k) {
+        return tokenCounts.get(k);
+    }
+
+    /*
+     Tokens of the sentences [from, to).
+     */
+    public long tokenCount(int from, int to) {
+        long tokens = 0;
+        for (int k = from; k < to; k++) {
+            tokens += tokenCounts.get(k);
+        }
+        return tokens;
+    }
+
+    /*
+     The bytes of sentence k, read from the file.
+     */
+    public byte[] sentence(int k) throws IOException {
+        byte[] sentence = new byte[lengths.get(k)];
+        ByteBuffer buffer = ByteBuffer.wrap(sentence);
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (buffer.hasRemaining()) {
+                if (in.read(buffer, start(k) + buffer.position()) < 0) {
+                    throw new EOFException("Sentence index of " + file + " is out of date");
+                }
+            }
+        }
+        return sentence;
+    }
+
+    /*
+     Copy the sentences [from, to) from in, a channel on the indexed file, to the current position of out, followed by
+     one empty line. The blank lines between the sentences are copied as they are.
+     */
+    public void transferTo(FileChannel in, int from, int to, FileChannel out) throws IOException {
+        if (from >= to) {
+            return;
+        }
+        ConllxFiles.transferFully(in, start(from), end(to - 1) - start(from), out);
+        boolean endsWithNewline = to < sentenceCount || lastEndsWithNewline;
+        ByteBuffer separator = ByteBuffer.wrap(endsWithNewline ? new byte[]{'\n'} : new byte[]{'\n', '\n'});
+        while (separator.hasRemaining()) {
+            out.write(separator);
+        }
+    }
+
+    private long[] startArray() {
+        long[] array = new long[sentenceCount];
+        for (int k = 0; k < sentenceCount; k++) {
+            array[k] = starts.get(k);
+        }
+        return array;
+    }
+
+    private int[] lengthArray() {
+        int[] array = new int[sentenceCount];
+        for (int k = 0; k < sentenceCount; k++) {
+            array[k] = lengths.get(k);
+        }
+        return array;
+    }
+
+    private int[] tokenCountArray() {
+        int[] array = new int[sentenceCount];
+        for (int k = 0; k < sentenceCount; k++) {
+            array[k] = tokenCounts.get(k);
+        }
+        return array;
+    }
+}
@@ -0,0 +1,119 @@
+package edu.utexas.nlp.hw3;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that preprocessing and concatenation stream their files: both run on a synthetic corpus of several hundred
+ * MB in a forked JVM whose heap is a fraction of the corpus size.
+ *
+ * The corpus size can be changed with -Dstreaming.sentences=<n> and the heap of the forked JVM with
+ * -Dstreaming.heap=<size>.
+ */
+public class StreamingMemoryTest {
+    private static final int SENTENCES = Integer.getInteger("streaming.sentences", 500000);
+    private static final String HEAP = System.getProperty("streaming.heap", "64m");
+    private static final int TEST_SENTENCES = 2000;
+    private static final int BROWN_GENRES = 8;
+    private static final int SENTENCES_PER_FILE = 2000;
+
+    private static File directory;
+    private static File wsjTraining;
+    private static File wsjTest;
+    private static File brown;
+
+    @BeforeClass
+    public static void generateCorpus() throws IOException {
+        directory = Files.createTempDirectory("streaming-memory-test").toFile();
+        wsjTraining = new File(directory, "wsj_00_22.conllx");
+        wsjTest = new File(directory, "wsj_23.conllx");
+        brown = new File(directory, "brown");
+        SyntheticCorpus corpus = new SyntheticCorpus(SENTENCES);
+        corpus.writeFile(wsjTraining, SENTENCES);
+        corpus.writeFile(wsjTest, TEST_SENTENCES);
+        corpus.writeBrownCorpus(brown, SENTENCES / 2, BROWN_GENRES, SENTENCES_PER_FILE);
+    }
+
+    @AfterClass
+    public static void deleteCorpus() {
+        deleteRecursively(directory);
+    }
+
+    @Test
+    public void preprocessingRunsInBoundedMemory() throws Exception {
+        File executionDirectory = new File(directory, "exec");
+        runWithSmallHeap("preprocess", wsjTraining.getPath(), wsjTest.getPath(), brown.getPath(), executionDirectory.getPath());
+
+        assertEquals(wsjTraining.length(), new File(executionDirectory, "wsj_training.conllx").length());
+        assertEquals(wsjTest.length(), new File(executionDirectory, "wsj_test.conllx").length());
+        assertEquals(SENTENCES / 2, sentenceCount(new File(executionDirectory, "brown_training.conllx"))
+                + sentenceCount(new File(executionDirectory, "brown_test.conllx")));
+    }
+
+    @Test
+    public void concatenationRunsInBoundedMemory() throws Exception {
+        File combined = new File(directory, "combined.conllx");
+        runWithSmallHeap("concatenate", wsjTraining.getPath(), wsjTest.getPath(), combined.getPath());
+
+        assertEquals(wsjTraining.length() + wsjTest.length(), combined.length());
+        assertEquals(SENTENCES + TEST_SENTENCES, sentenceCount(combined));
+    }
+
+    /*
+     Run main of this class with the arguments in a JVM limited to HEAP, failing with its output unless it succeeds.
+     */
+    private static void runWithSmallHeap(String... args) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>(Arrays.asList(new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-Xmx" + HEAP, "-cp", System.getProperty("java.class.path"), StreamingMemoryTest.class.getName()));
+        command.addAll(Arrays.asList(args));
+        File log = new File(directory, args[0] + ".log");
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log).start();
+        int exitCode = process.waitFor();
+        assertEquals(args[0] + " with -Xmx" + HEAP + " failed:\n" + new String(Files.readAllBytes(log.toPath()), StandardCharsets.UTF_8),
+                0, exitCode);
+    }
+
+    private static int sentenceCount(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return ConllxFiles.countSentences(channel, 0, channel.size());
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    /*
+     Entry point of the forked JVM: preprocess <wsj_training> <wsj_test> <brown_base> <execution_dir>, or
+     concatenate <source>... <destination>. Any exception ends the JVM with a non-zero exit code.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args[0].equals("preprocess")) {
+            new Preprocessor(args[1], args[2], args[3], args[4]).preprocess();
+        } else {
+            File[] sources = new File[args.length - 2];
+            for (int i = 0; i < sources.length; i++) {
+                sources[i] = new File(args[i + 1]);
+            }
+            ConllxFiles.concatenate(sources, new File(args[args.length - 1]));
+        }
+    }
+}